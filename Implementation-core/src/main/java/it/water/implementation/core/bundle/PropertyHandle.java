@@ -0,0 +1,68 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.implementation.core.bundle;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.function.Function;
+
+/**
+ * @Author Aristide Cittadino
+ * Parsed value of an application property, to be kept as field by components reading it frequently.
+ * The value is refreshed through PropertyHandles whenever the application properties change, so get is a volatile read.
+ */
+public class PropertyHandle<T> {
+    private static Logger log = LoggerFactory.getLogger(PropertyHandle.class);
+
+    private final TypedApplicationProperties applicationProperties;
+    private final String key;
+    private final Function<Object, T> parser;
+    private final T defaultValue;
+    private volatile T value;
+
+    PropertyHandle(TypedApplicationProperties applicationProperties, String key, Function<Object, T> parser, T defaultValue) {
+        this.applicationProperties = applicationProperties;
+        this.key = key;
+        this.parser = parser;
+        this.defaultValue = defaultValue;
+        this.value = defaultValue;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return the parsed value of the property or the default value if the property is not defined
+     */
+    public T get() {
+        return value;
+    }
+
+    /**
+     * Synchronized so concurrent refreshes end with the value of the latest configuration.
+     */
+    synchronized void refresh() {
+        try {
+            T parsedValue = applicationProperties.getParsedProperty(key, parser);
+            this.value = (parsedValue != null) ? parsedValue : defaultValue;
+        } catch (RuntimeException e) {
+            log.warn("Invalid value for property {}, keeping the previous one: {}", key, e.getMessage());
+        }
+    }
+}
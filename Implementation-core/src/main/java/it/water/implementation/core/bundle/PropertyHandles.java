@@ -0,0 +1,58 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.implementation.core.bundle;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.function.Function;
+
+/**
+ * @Author Aristide Cittadino
+ * Property handles created by an application properties implementation.
+ * Handles are weakly referenced so they go away with the components keeping them.
+ */
+public class PropertyHandles {
+    private final Set<PropertyHandle<?>> propertyHandles = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+
+    /**
+     * @param applicationProperties properties the handle reads from
+     * @param key                   property key
+     * @param parser                converts the resolved value of the property
+     * @param defaultValue          value used when the property is not defined
+     * @return a new handle, already holding the current value
+     */
+    public <T> PropertyHandle<T> create(TypedApplicationProperties applicationProperties, String key, Function<Object, T> parser, T defaultValue) {
+        PropertyHandle<T> propertyHandle = new PropertyHandle<>(applicationProperties, key, parser, defaultValue);
+        propertyHandles.add(propertyHandle);
+        propertyHandle.refresh();
+        return propertyHandle;
+    }
+
+    /**
+     * Reads again the value of each handle, to be invoked whenever the application properties change.
+     */
+    public void refresh() {
+        List<PropertyHandle<?>> handles;
+        synchronized (propertyHandles) {
+            handles = new ArrayList<>(propertyHandles);
+        }
+        handles.forEach(PropertyHandle::refresh);
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.implementation.core.bundle;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * @Author Aristide Cittadino
+ * Parsers used by typed property accessors, to be used also with property handles.
+ * Parsers are shared instances, so parsed values can be cached per parser.
+ */
+public final class PropertyParsers {
+    public static final Function<Object, Integer> INTEGER = value -> (value instanceof Number) ? ((Number) value).intValue() : Integer.parseInt(value.toString().trim());
+    public static final Function<Object, Long> LONG = value -> (value instanceof Number) ? ((Number) value).longValue() : Long.parseLong(value.toString().trim());
+    public static final Function<Object, Boolean> BOOLEAN = value -> (value instanceof Boolean) ? (Boolean) value : Boolean.parseBoolean(value.toString().trim());
+    public static final Function<Object, Duration> DURATION = value -> Duration.parse(value.toString().trim());
+    //comma separated values, blank elements are discarded
+    public static final Function<Object, List<String>> LIST = value -> Arrays.stream(value.toString().split(",")).map(String::trim).filter(element -> !element.isEmpty()).toList();
+
+    private PropertyParsers() {
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.implementation.core.bundle;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * @Author Aristide Cittadino
+ * Cache of resolved property values.
+ * Each entry remembers the properties read while resolving it, so a change invalidates only the values depending on it.
+ * Entries are never checked on read: owners invalidate them when the properties change.
+ * Values parsed by typed accessors are kept with the resolved value and invalidated with it.
+ */
+public class ResolvedPropertyCache {
+    //past this size values are resolved on each read, so unknown keys cannot grow the cache without limit
+    private static final int MAX_ENTRIES = 1024;
+
+    private final Map<String, ResolvedProperty> resolvedProperties = new ConcurrentHashMap<>();
+    //properties read by the resolution running on the current thread
+    private final ThreadLocal<Set<String>> readProperties = new ThreadLocal<>();
+    private final Function<String, Object> rawValues;
+    private final Function<Object, Object> resolver;
+    //incremented on each invalidation, values resolved before it are not cached
+    private volatile long generation;
+
+    /**
+     * @param rawValues current raw value of each property
+     * @param resolver  resolves a raw value
+     */
+    public ResolvedPropertyCache(Function<String, Object> rawValues, Function<Object, Object> resolver) {
+        this.rawValues = rawValues;
+        this.resolver = resolver;
+    }
+
+    /**
+     * Records a property read, if it happens while resolving another property it becomes one of its dependencies.
+     *
+     * @param key property key
+     */
+    public void propertyRead(String key) {
+        Set<String> dependencies = readProperties.get();
+        if (dependencies != null)
+            dependencies.add(key);
+    }
+
+    /**
+     * @param key property key
+     * @return the resolved value, null if the property is not defined
+     */
+    public Object get(String key) {
+        return lookup(key).resolvedValue;
+    }
+
+    /**
+     * @param key    property key
+     * @param parser converts the resolved value, parsed values are reused as long as the same parser instance is used
+     * @return the parsed resolved value, null if the property is not defined
+     */
+    public <T> T get(String key, Function<Object, T> parser) {
+        ResolvedProperty resolvedProperty = lookup(key);
+        return (resolvedProperty.rawValue != null) ? resolvedProperty.parse(parser) : null;
+    }
+
+    /**
+     * Drops the values of the changed properties and of the properties resolved from them.
+     *
+     * @param keys changed properties
+     */
+    public synchronized void invalidate(Set<String> keys) {
+        if (keys.isEmpty())
+            return;
+        generation++;
+        resolvedProperties.entrySet().removeIf(entry -> keys.contains(entry.getKey()) || !Collections.disjoint(entry.getValue().dependencies, keys));
+    }
+
+    /**
+     * Drops every value, used when changed properties are not known.
+     */
+    public synchronized void clear() {
+        generation++;
+        resolvedProperties.clear();
+    }
+
+    private ResolvedProperty lookup(String key) {
+        Set<String> outerDependencies = readProperties.get();
+        if (outerDependencies != null)
+            outerDependencies.add(key);
+        ResolvedProperty resolvedProperty = resolvedProperties.get(key);
+        if (resolvedProperty == null) {
+            long resolutionGeneration = generation;
+            Object rawValue = rawValues.apply(key);
+            Set<String> dependencies = new HashSet<>();
+            Object resolvedValue = null;
+            if (rawValue != null) {
+                readProperties.set(dependencies);
+                try {
+                    resolvedValue = resolver.apply(rawValue);
+                } finally {
+                    readProperties.set(outerDependencies);
+                }
+            }
+            resolvedProperty = new ResolvedProperty(rawValue, resolvedValue, dependencies.isEmpty() ? Collections.emptySet() : dependencies);
+            store(key, resolvedProperty, resolutionGeneration);
+        }
+        //dependencies are transitive
+        if (outerDependencies != null)
+            outerDependencies.addAll(resolvedProperty.dependencies);
+        return resolvedProperty;
+    }
+
+    private synchronized void store(String key, ResolvedProperty resolvedProperty, long resolutionGeneration) {
+        //properties may have changed while resolving
+        if (resolutionGeneration == generation && resolvedProperties.size() < MAX_ENTRIES)
+            resolvedProperties.putIfAbsent(key, resolvedProperty);
+    }
+
+    private static class ResolvedProperty {
+        private final Object rawValue;
+        private final Object resolvedValue;
+        private final Set<String> dependencies;
+        //last parsed value, a key is usually read always with the same type
+        private volatile ParsedValue parsedValue;
+
+        private ResolvedProperty(Object rawValue, Object resolvedValue, Set<String> dependencies) {
+            this.rawValue = rawValue;
+            this.resolvedValue = resolvedValue;
+            this.dependencies = dependencies;
+        }
+
+        @SuppressWarnings("unchecked")
+        private <T> T parse(Function<Object, T> parser) {
+            ParsedValue current = parsedValue;
+            if (current == null || current.parser != parser) {
+                current = new ParsedValue(parser, parser.apply(resolvedValue));
+                parsedValue = current;
+            }
+            return (T) current.value;
+        }
+    }
+
+    private static class ParsedValue {
+        private final Function<Object, ?> parser;
+        private final Object value;
+
+        private ParsedValue(Function<Object, ?> parser, Object value) {
+            this.parser = parser;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.implementation.core.bundle;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * @Author Aristide Cittadino
+ * Typed accessors of application properties.
+ * Values which cannot be converted make the accessors throw the parser exception,
+ * ex. NumberFormatException for getInt or DateTimeParseException for getDuration.
+ */
+public interface TypedApplicationProperties {
+
+    /**
+     * @param key    property key
+     * @param parser converts the resolved value of the property
+     * @return the parsed value or null if the property is not defined
+     */
+    <T> T getParsedProperty(String key, Function<Object, T> parser);
+
+    /**
+     * @param key          property key
+     * @param parser       converts the resolved value of the property
+     * @param defaultValue value used when the property is not defined
+     * @return handle which keeps the parsed value updated with the application properties
+     */
+    <T> PropertyHandle<T> getPropertyHandle(String key, Function<Object, T> parser, T defaultValue);
+
+    /**
+     * @return the int value of the property or defaultValue if the property is not defined
+     */
+    default int getInt(String key, int defaultValue) {
+        Integer value = getParsedProperty(key, PropertyParsers.INTEGER);
+        return (value != null) ? value : defaultValue;
+    }
+
+    /**
+     * @return the long value of the property or defaultValue if the property is not defined
+     */
+    default long getLong(String key, long defaultValue) {
+        Long value = getParsedProperty(key, PropertyParsers.LONG);
+        return (value != null) ? value : defaultValue;
+    }
+
+    /**
+     * @return the boolean value of the property or defaultValue if the property is not defined
+     */
+    default boolean getBoolean(String key, boolean defaultValue) {
+        Boolean value = getParsedProperty(key, PropertyParsers.BOOLEAN);
+        return (value != null) ? value : defaultValue;
+    }
+
+    /**
+     * @return the duration of the property, in ISO-8601 format (ex. PT30S), or defaultValue if the property is not defined
+     */
+    default Duration getDuration(String key, Duration defaultValue) {
+        Duration value = getParsedProperty(key, PropertyParsers.DURATION);
+        return (value != null) ? value : defaultValue;
+    }
+
+    /**
+     * @return the comma separated values of the property, empty if the property is not defined
+     */
+    default List<String> getList(String key) {
+        List<String> value = getParsedProperty(key, PropertyParsers.LIST);
+        return (value != null) ? value : Collections.emptyList();
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package it.water.implementation.core.interceptors;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * @Author Aristide Cittadino
+ * Resolved interceptor chain of each (service class, method): the annotations interceptors are bound to.
+ * Interceptors are bound to method, parameter and field annotations, so when none of them is present
+ * the chain is skipped entirely.
+ * Field annotations belong to every chain of the service, since fields are injected before any invocation.
+ * Annotations depend only on the service class, so plans are cached in a ClassValue and dropped together with the class.
+ */
+public final class InvocationPlan {
+    private static final InvocationPlan NO_OP = new InvocationPlan(Collections.emptyList(), true);
+
+    private static final ClassValue<Map<Method, InvocationPlan>> PLANS = new ClassValue<>() {
+        @Override
+        protected Map<Method, InvocationPlan> computeValue(Class<?> type) {
+            return new ConcurrentHashMap<>();
+        }
+    };
+
+    private static final ClassValue<List<Annotation>> FIELD_BINDINGS = new ClassValue<>() {
+        @Override
+        protected List<Annotation> computeValue(Class<?> type) {
+            List<Annotation> bindings = new ArrayList<>();
+            for (Class<?> current = type; current != null && current != Object.class; current = current.getSuperclass()) {
+                for (Field field : current.getDeclaredFields()) {
+                    bindings.addAll(Arrays.asList(field.getAnnotations()));
+                }
+            }
+            return Collections.unmodifiableList(bindings);
+        }
+    };
+
+    //true if any method or field of the class can be bound to interceptors
+    private static final ClassValue<Boolean> INTERCEPTABLE = new ClassValue<>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            if (!FIELD_BINDINGS.get(type).isEmpty())
+                return true;
+            for (Method method : type.getMethods()) {
+                if (method.getDeclaringClass() != Object.class && isAnnotated(method))
+                    return true;
+            }
+            //annotations of interface methods are not inherited by implementations
+            for (Class<?> current = type; current != null; current = current.getSuperclass()) {
+                for (Class<?> implemented : current.getInterfaces()) {
+                    for (Method method : implemented.getMethods()) {
+                        if (isAnnotated(method))
+                            return true;
+                    }
+                }
+            }
+            return false;
+        }
+    };
+
+    private final List<Annotation> bindings;
+    private final boolean noOp;
+
+    private InvocationPlan(List<Annotation> bindings, boolean noOp) {
+        this.bindings = bindings;
+        this.noOp = noOp;
+    }
+
+    /**
+     * @param serviceClass concrete class of the invoked service
+     * @param method       invoked method
+     * @return the invocation plan of the method
+     */
+    public static InvocationPlan forMethod(Class<?> serviceClass, Method method) {
+        Map<Method, InvocationPlan> plans = PLANS.get(serviceClass);
+        InvocationPlan plan = plans.get(method);
+        if (plan == null) {
+            plan = computePlan(serviceClass, method);
+            plans.putIfAbsent(method, plan);
+        }
+        return plan;
+    }
+
+    /**
+     * @param serviceClass concrete class of the service
+     * @return false if every invocation plan of the service is empty
+     */
+    public static boolean isInterceptable(Class<?> serviceClass) {
+        return INTERCEPTABLE.get(serviceClass);
+    }
+
+    /**
+     * @return annotations of the invoked method, of its implementation, of their parameters and of the service fields
+     */
+    public List<Annotation> getBindings() {
+        return bindings;
+    }
+
+    public boolean isNoOp() {
+        return noOp;
+    }
+
+    private static InvocationPlan computePlan(Class<?> serviceClass, Method method) {
+        List<Annotation> bindings = new ArrayList<>();
+        addBindings(bindings, method);
+        Method implementation;
+        try {
+            implementation = serviceClass.getMethod(method.getName(), method.getParameterTypes());
+        } catch (NoSuchMethodException e) {
+            //letting the interceptor chain report the error
+            return new InvocationPlan(Collections.unmodifiableList(bindings), false);
+        }
+        if (!implementation.equals(method))
+            addBindings(bindings, implementation);
+        bindings.addAll(FIELD_BINDINGS.get(serviceClass));
+        if (bindings.isEmpty())
+            return NO_OP;
+        return new InvocationPlan(Collections.unmodifiableList(bindings), false);
+    }
+
+    private static void addBindings(List<Annotation> bindings, Method method) {
+        bindings.addAll(Arrays.asList(method.getAnnotations()));
+        for (Annotation[] parameterAnnotations : method.getParameterAnnotations()) {
+            bindings.addAll(Arrays.asList(parameterAnnotations));
+        }
+    }
+
+    private static boolean isAnnotated(Method method) {
+        if (method.getAnnotations().length > 0)
+            return true;
+        for (Annotation[] parameterAnnotations : method.getParameterAnnotations()) {
+            if (parameterAnnotations.length > 0)
+                return true;
+        }
+        return false;
+    }
+}
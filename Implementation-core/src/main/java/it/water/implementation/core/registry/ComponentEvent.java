@@ -0,0 +1,64 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package it.water.implementation.core.registry;
+
+import java.util.Properties;
+
+
+/**
+ * @Author Aristide Cittadino
+ * Change of a component published by a component registry.
+ * Events are keyed by the registration of the component: ADDED and MODIFIED can be handled as upserts, REMOVED as deletion.
+ *
+ * @param <T> component type
+ */
+public abstract class ComponentEvent<T> {
+    public enum Type {
+        ADDED, MODIFIED, REMOVED
+    }
+
+    private final Type type;
+
+    protected ComponentEvent(Type type) {
+        this.type = type;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return key of the registration, events with the same key are conflated
+     */
+    public abstract Object getKey();
+
+    /**
+     * @return the component, null if it is not available anymore
+     */
+    public abstract T getComponent();
+
+    /**
+     * @return registration properties of the component
+     */
+    public abstract Properties getProperties();
+
+    /**
+     * @return the same event with a different type, used when events are conflated
+     */
+    protected abstract ComponentEvent<T> withType(Type newType);
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package it.water.implementation.core.registry;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * @Author Aristide Cittadino
+ * Subscription to the component events of a type.
+ * Events are buffered per subscriber and conflated by key, so a slow subscriber receives only the latest state of each component.
+ * When the buffer is full of distinct components the subscription is cancelled and the subscriber is notified with onError,
+ * since the subscriber view cannot be kept consistent anymore.
+ * Events are delivered asynchronously on the given executor, honouring the requested demand.
+ * Implementations feed the subscription from the registry of their framework.
+ *
+ * @param <T> component type
+ * @param <E> event type
+ */
+public abstract class ComponentEventSubscription<T, E extends ComponentEvent<T>> implements Flow.Subscription {
+    private static final Logger log = LoggerFactory.getLogger(ComponentEventSubscription.class);
+
+    private final Flow.Subscriber<? super E> subscriber;
+    private final Executor executor;
+    private final int bufferSize;
+    //pending events by key, in arrival order, guarded by lock
+    private final Map<Object, E> buffer = new LinkedHashMap<>();
+    private final AtomicLong requested = new AtomicLong();
+    private final AtomicInteger pendingDrains = new AtomicInteger();
+    private volatile boolean cancelled;
+    //guarded by lock
+    private Throwable error;
+    protected final Object lock = new Object();
+
+    protected ComponentEventSubscription(Flow.Subscriber<? super E> subscriber, Executor executor, int bufferSize) {
+        this.subscriber = subscriber;
+        this.executor = executor;
+        this.bufferSize = bufferSize;
+    }
+
+    @Override
+    public void request(long n) {
+        if (n <= 0) {
+            fail(new IllegalArgumentException("Requested events must be positive, got: " + n));
+        } else {
+            requested.getAndUpdate(current -> (current + n < 0) ? Long.MAX_VALUE : current + n);
+        }
+        drain();
+    }
+
+    @Override
+    public void cancel() {
+        cancelled = true;
+        onCancel();
+        synchronized (lock) {
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Invoked once the subscription is cancelled, to stop listening for registry changes.
+     */
+    protected abstract void onCancel();
+
+    protected boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Buffers the event and schedules its delivery.
+     */
+    protected void publish(E event) {
+        if (cancelled)
+            return;
+        synchronized (lock) {
+            enqueue(event);
+        }
+        drain();
+    }
+
+    /**
+     * Buffers the event, must be invoked holding the lock.
+     */
+    @SuppressWarnings("unchecked")
+    protected void enqueue(E event) {
+        if (error != null)
+            return;
+        Object key = event.getKey();
+        E previous = buffer.get(key);
+        if (previous == null) {
+            if (buffer.size() >= bufferSize) {
+                buffer.clear();
+                error = new IllegalStateException("Component events buffer overflow, subscriber is too slow (buffer size: " + bufferSize + ")");
+                return;
+            }
+            buffer.put(key, event);
+            return;
+        }
+        ComponentEvent.Type conflated = conflate(previous.getType(), event.getType());
+        if (conflated == null)
+            buffer.remove(key);
+        else
+            buffer.put(key, (E) event.withType(conflated));
+    }
+
+    /**
+     * @return the event type which summarizes both events, null if they cancel each other out
+     */
+    static ComponentEvent.Type conflate(ComponentEvent.Type previous, ComponentEvent.Type next) {
+        return switch (next) {
+            //the subscriber has never seen the added component
+            case REMOVED -> (previous == ComponentEvent.Type.ADDED) ? null : ComponentEvent.Type.REMOVED;
+            case MODIFIED -> (previous == ComponentEvent.Type.ADDED) ? ComponentEvent.Type.ADDED : ComponentEvent.Type.MODIFIED;
+            //component registered again after being removed
+            case ADDED -> (previous == ComponentEvent.Type.REMOVED) ? ComponentEvent.Type.MODIFIED : ComponentEvent.Type.ADDED;
+        };
+    }
+
+    protected void fail(Throwable t) {
+        synchronized (lock) {
+            if (error == null)
+                error = t;
+            buffer.clear();
+        }
+    }
+
+    protected void drain() {
+        if (pendingDrains.getAndIncrement() == 0) {
+            try {
+                executor.execute(this::deliver);
+            } catch (RejectedExecutionException e) {
+                log.warn("Cannot deliver component events: {}", e.getMessage());
+                pendingDrains.set(0);
+            }
+        }
+    }
+
+    private void deliver() {
+        int missed = 1;
+        do {
+            while (!cancelled) {
+                Throwable failure;
+                E next = null;
+                synchronized (lock) {
+                    failure = error;
+                    if (failure == null && requested.get() > 0 && !buffer.isEmpty()) {
+                        Iterator<E> it = buffer.values().iterator();
+                        next = it.next();
+                        it.remove();
+                    }
+                }
+                if (failure != null) {
+                    cancel();
+                    subscriber.onError(failure);
+                    return;
+                }
+                if (next == null)
+                    break;
+                requested.decrementAndGet();
+                try {
+                    subscriber.onNext(next);
+                } catch (RuntimeException e) {
+                    log.warn("Component events subscriber failed, cancelling subscription: {}", e.getMessage(), e);
+                    cancel();
+                    return;
+                }
+            }
+            missed = pendingDrains.addAndGet(-missed);
+        } while (missed != 0);
+    }
+}
@@ -16,10 +16,22 @@
 package it.water.implementation.osgi.bundle;
 
 import it.water.core.api.bundle.ApplicationProperties;
+import it.water.implementation.core.bundle.PropertyHandle;
+import it.water.implementation.core.bundle.PropertyHandles;
+import it.water.implementation.core.bundle.ResolvedPropertyCache;
+import it.water.implementation.core.bundle.TypedApplicationProperties;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
 import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.SynchronousBundleListener;
 import org.osgi.service.cm.Configuration;
 import org.osgi.service.cm.ConfigurationAdmin;
+import org.osgi.service.cm.ConfigurationEvent;
+import org.osgi.service.cm.ConfigurationListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -27,41 +39,127 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.util.Collections;
 import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 /**
  * @Author Aristide Cittadino
  * OSGi Application Properties, registered manually as component at startup
  */
-public class OsgiApplicationProperties implements ApplicationProperties {
+public class OsgiApplicationProperties implements ApplicationProperties, TypedApplicationProperties {
     private static Logger logger = LoggerFactory.getLogger(OsgiApplicationProperties.class);
 
     private static final String APPLICATION_DEFAULT_CFG = "etc/it.water.application";
     private static final String DEFAULT_CFG_PID = "it.water.application";
     private static final String DEFAULT_PROPERTY_FILE = DEFAULT_CFG_PID + ".properties";
+    //the write happens once no contribution has been received for this delay, so bursts are merged in a single configuration update
+    private static final long CONFIGURATION_WRITE_DELAY_MILLIS = 250;
 
     private Properties properties;
+    private ScheduledThreadPoolExecutor configurationWriter;
+    //context of the bundle which owns the listeners, null once stopped
+    private BundleContext bundleContext;
+    private ServiceRegistration<ConfigurationListener> configurationListenerRegistration;
+    private FrameworkListener frameworkListener;
+    private SynchronousBundleListener bundleListener;
+    //immutable copy of the it.water.application configuration, replaced as a whole on each change
+    private volatile Map<String, Object> snapshot = Collections.emptyMap();
+    //true while the snapshot contains changes not yet written to ConfigurationAdmin
+    private boolean writeScheduled;
+    //write postponed by each change, guarded by this
+    private ScheduledFuture<?> scheduledWrite;
+    //serializes ConfigurationAdmin writes, which run without holding the lock on this
+    private final Object writeLock = new Object();
+    //local changes not yet written, merged over the configuration read from ConfigurationAdmin, guarded by this
+    private final Map<String, Object> pendingValues = new HashMap<>();
+    private final Set<String> pendingRemovals = new HashSet<>();
+    private final ResolvedPropertyCache resolvedProperties = new ResolvedPropertyCache(key -> snapshot.get(key), rawValue -> resolvePropertyValue(rawValue.toString()));
+    //handles are refreshed on each configuration change
+    private final PropertyHandles propertyHandles = new PropertyHandles();
 
     @Override
     public void setup() {
         this.properties = new Properties();
+        this.configurationWriter = createConfigurationWriter();
+        BundleContext context = FrameworkUtil.getBundle(this.getClass()).getBundleContext();
+        this.bundleContext = context;
+        //listening before reading, so changes made in the meanwhile are not lost
+        this.configurationListenerRegistration = context.registerService(ConfigurationListener.class, this::configurationChanged, null);
+        //STARTED is fired once, at framework startup, it only avoids waiting for the delay.
+        //Contributions of bundles started later are written by the scheduled write.
+        this.frameworkListener = event -> {
+            if (event.getType() == FrameworkEvent.STARTED)
+                this.writeOsgiConfigurationManager();
+        };
+        context.addFrameworkListener(frameworkListener);
+        //pending changes are written when the bundle owning the listeners stops
+        this.bundleListener = event -> {
+            if (event.getType() == BundleEvent.STOPPING && event.getBundle().getBundleId() == context.getBundle().getBundleId())
+                this.stop();
+        };
+        context.addBundleListener(bundleListener);
+        this.refreshSnapshot();
         File cfgPath = new File(APPLICATION_DEFAULT_CFG);
         loadProperties(cfgPath);
     }
 
+    /**
+     * Writes pending changes to ConfigurationAdmin, removes listeners and shuts down the writer thread.
+     * Invoked automatically when the bundle which registered the listeners is stopping.
+     * Changes made after stop are written immediately.
+     */
+    public void stop() {
+        BundleContext context;
+        synchronized (this) {
+            context = this.bundleContext;
+            this.bundleContext = null;
+        }
+        if (context == null)
+            return;
+        try {
+            context.removeBundleListener(bundleListener);
+            context.removeFrameworkListener(frameworkListener);
+            configurationListenerRegistration.unregister();
+        } catch (IllegalStateException e) {
+            logger.debug("Application properties listeners already removed: {}", e.getMessage());
+        }
+        //the scheduled write, if any, is replaced by the flush below
+        configurationWriter.shutdownNow();
+        this.writeOsgiConfigurationManager();
+    }
+
     @Override
     public Object getProperty(String key) {
-        if (containsKey(key))
-            return this.resolvePropertyValue(getConfigurationAdminProperties().get(key).toString());
-        return null;
+        return resolvedProperties.get(key);
     }
 
     @Override
     public boolean containsKey(String key) {
-        return getConfigurationAdminProperties().get(key) != null;
+        Object value = snapshot.get(key);
+        resolvedProperties.propertyRead(key);
+        return value != null;
+    }
+
+    @Override
+    public <T> PropertyHandle<T> getPropertyHandle(String key, Function<Object, T> parser, T defaultValue) {
+        return propertyHandles.create(this, key, parser, defaultValue);
+    }
+
+    @Override
+    public <T> T getParsedProperty(String key, Function<Object, T> parser) {
+        return resolvedProperties.get(key, parser);
     }
 
     public void loadBundleProperties(BundleContext bundleContext) {
@@ -74,52 +172,60 @@ public class OsgiApplicationProperties implements ApplicationProperties {
                 logger.error("Failed to load properties from " + cfgResource, e);
             }
             //adding only properties not already defined
+            Map<String, Object> added = new HashMap<>();
             props.keySet().forEach(key -> {
                 Object value = props.get(key);
                 if (!this.properties.contains(key)) {
                     this.properties.put(key, value);
+                    added.put(key.toString(), value);
                 } else
                     logger.warn("WATER PROPERTY CONFLICT! Key {} with value {} from module {}. will be discarded", key, value, bundleContext.getBundle().getSymbolicName());
             });
-            updateOsgiConfigurationManager();
+            updateOsgiConfigurationManager(added, Collections.emptySet());
         }
     }
 
     @Override
     public void loadProperties(File file) {
-        if (getConfigurationAdmin() != null) {
-            try {
-                Configuration configuration = getConfigurationAdmin().getConfiguration(file.getName());
+        try {
+            Dictionary<String, Object> configurationProperties = withConfigurationAdmin(configurationAdmin -> configurationAdmin.getConfiguration(file.getName()).getProperties());
+            if (configurationProperties != null) {
                 Properties tmp = new Properties();
-                Iterator<String> it = configuration.getProperties().keys().asIterator();
+                Iterator<String> it = configurationProperties.keys().asIterator();
                 while (it.hasNext()) {
                     String key = it.next();
-                    Object val = configuration.getProperties().get(key);
+                    Object val = configurationProperties.get(key);
                     tmp.put(key, val);
                 }
                 loadProperties(tmp);
-            } catch (Exception e) {
-                logger.error(e.getMessage(), e);
             }
+        } catch (Exception e) {
+            logger.error(e.getMessage(), e);
         }
     }
 
     @Override
     public void loadProperties(Properties props) {
         this.properties.putAll(props);
-        this.updateOsgiConfigurationManager();
+        Map<String, Object> loaded = new HashMap<>();
+        props.forEach((key, value) -> loaded.put(key.toString(), value));
+        this.updateOsgiConfigurationManager(loaded, Collections.emptySet());
     }
 
     @Override
     public void unloadProperties(File file) {
         try {
-            Configuration configuration = getConfigurationAdmin().getConfiguration(file.getName());
-            Iterator<String> it = configuration.getProperties().keys().asIterator();
+            Dictionary<String, Object> configurationProperties = withConfigurationAdmin(configurationAdmin -> configurationAdmin.getConfiguration(file.getName()).getProperties());
+            if (configurationProperties == null)
+                return;
+            Set<String> removed = new HashSet<>();
+            Iterator<String> it = configurationProperties.keys().asIterator();
             while (it.hasNext()) {
                 String key = it.next();
                 this.properties.remove(key);
+                removed.add(key);
             }
-            this.updateOsgiConfigurationManager();
+            this.updateOsgiConfigurationManager(Collections.emptyMap(), removed);
         } catch (Exception e) {
             logger.error(e.getMessage(), e);
         }
@@ -127,34 +233,201 @@ public class OsgiApplicationProperties implements ApplicationProperties {
 
     @Override
     public void unloadProperties(Properties props) {
-        props.keySet().forEach(key -> this.properties.remove(key));
-        updateOsgiConfigurationManager();
+        Set<String> removed = new HashSet<>();
+        props.keySet().forEach(key -> {
+            this.properties.remove(key);
+            removed.add(key.toString());
+        });
+        updateOsgiConfigurationManager(Collections.emptyMap(), removed);
     }
 
-    private ConfigurationAdmin getConfigurationAdmin() {
+    /**
+     * Runs the action with ConfigurationAdmin, releasing the service once done.
+     *
+     * @return the action result, null if ConfigurationAdmin is not available
+     */
+    private <T> T withConfigurationAdmin(ConfigurationAdminAction<T> action) throws IOException {
         BundleContext bundleContext = FrameworkUtil.getBundle(this.getClass()).getBundleContext();
-        return bundleContext.getService(bundleContext.getServiceReference(ConfigurationAdmin.class));
+        ServiceReference<ConfigurationAdmin> reference = (bundleContext != null) ? bundleContext.getServiceReference(ConfigurationAdmin.class) : null;
+        ConfigurationAdmin configurationAdmin = (reference != null) ? bundleContext.getService(reference) : null;
+        if (configurationAdmin == null)
+            return null;
+        try {
+            return action.apply(configurationAdmin);
+        } finally {
+            bundleContext.ungetService(reference);
+        }
     }
 
     private Dictionary<? extends Object, Object> getConfigurationAdminProperties() {
         try {
-            return getConfigurationAdmin().getConfiguration(DEFAULT_CFG_PID).getProperties();
+            Dictionary<String, Object> configurationProperties = withConfigurationAdmin(configurationAdmin -> configurationAdmin.getConfiguration(DEFAULT_CFG_PID).getProperties());
+            if (configurationProperties != null)
+                return configurationProperties;
         } catch (Exception e) {
             logger.error(e.getMessage(), e);
         }
         return new Properties();
     }
 
-    private void updateOsgiConfigurationManager() {
-        //Updating the whole it.water.application.cfg with all properties merged
-        Dictionary<String, Object> dictionary = new Hashtable<>();
-        this.properties.forEach((key, value) -> dictionary.put(key.toString(), value));
-        try {
-            Configuration configuration = getConfigurationAdmin().getConfiguration(DEFAULT_CFG_PID);
-            //save config osgi
-            configuration.update(dictionary);
-        } catch (IOException e) {
-            logger.error(e.getMessage(), e);
+    private void configurationChanged(ConfigurationEvent event) {
+        if (DEFAULT_CFG_PID.equals(event.getPid()))
+            this.refreshSnapshot();
+    }
+
+    /**
+     * Reads the current configuration from ConfigurationAdmin, events are asynchronous so the event order does not matter.
+     * Local changes not yet written are applied over it.
+     */
+    private void refreshSnapshot() {
+        Map<String, Object> values = new HashMap<>();
+        Dictionary<? extends Object, Object> configurationProperties = getConfigurationAdminProperties();
+        Iterator<? extends Object> it = configurationProperties.keys().asIterator();
+        while (it.hasNext()) {
+            Object key = it.next();
+            values.put(key.toString(), configurationProperties.get(key));
         }
+        Set<String> changedKeys;
+        synchronized (this) {
+            applyPendingChanges(values);
+            if (values.equals(this.snapshot))
+                return;
+            changedKeys = changedKeys(this.snapshot, values);
+            this.snapshot = Collections.unmodifiableMap(values);
+        }
+        this.refreshProperties(changedKeys);
+    }
+
+    //must be invoked holding the lock on this
+    private void applyPendingChanges(Map<String, Object> values) {
+        values.putAll(pendingValues);
+        pendingRemovals.forEach(values::remove);
+    }
+
+    private static Set<String> changedKeys(Map<String, Object> previous, Map<String, Object> current) {
+        Set<String> changedKeys = new HashSet<>();
+        previous.forEach((key, value) -> {
+            if (!value.equals(current.get(key)))
+                changedKeys.add(key);
+        });
+        current.forEach((key, value) -> {
+            if (!previous.containsKey(key))
+                changedKeys.add(key);
+        });
+        return changedKeys;
+    }
+
+    private void refreshProperties(Set<String> changedKeys) {
+        resolvedProperties.invalidate(changedKeys);
+        propertyHandles.refresh();
+    }
+
+    /**
+     * Merges local changes into the current configuration, so changes made through ConfigurationAdmin are kept.
+     *
+     * @param changed properties added or updated
+     * @param removed keys of the removed properties
+     */
+    private void updateOsgiConfigurationManager(Map<String, Object> changed, Set<String> removed) {
+        boolean writeNow = false;
+        Set<String> changedKeys;
+        synchronized (this) {
+            changed.forEach((key, value) -> {
+                pendingValues.put(key, value);
+                pendingRemovals.remove(key);
+            });
+            removed.forEach(key -> {
+                pendingValues.remove(key);
+                pendingRemovals.add(key);
+            });
+            Map<String, Object> values = new HashMap<>(this.snapshot);
+            applyPendingChanges(values);
+            changedKeys = changedKeys(this.snapshot, values);
+            //local changes are visible immediately, without waiting for the configuration event
+            this.snapshot = Collections.unmodifiableMap(values);
+            writeScheduled = true;
+            //each change postpones the write
+            if (scheduledWrite != null)
+                scheduledWrite.cancel(false);
+            try {
+                scheduledWrite = configurationWriter.schedule(this::writeOsgiConfigurationManager, CONFIGURATION_WRITE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                //stopped
+                scheduledWrite = null;
+                writeNow = true;
+            }
+        }
+        if (writeNow)
+            this.writeOsgiConfigurationManager();
+        this.refreshProperties(changedKeys);
+    }
+
+    /**
+     * Writes pending local changes over the configuration currently stored in ConfigurationAdmin.
+     * ConfigurationAdmin is invoked without holding the lock on this, written changes stay pending until the update
+     * returns, so refreshes always see them either pending or written.
+     */
+    private void writeOsgiConfigurationManager() {
+        synchronized (writeLock) {
+            Map<String, Object> writtenValues;
+            Set<String> writtenRemovals;
+            synchronized (this) {
+                //already written at framework startup or on stop
+                if (!writeScheduled)
+                    return;
+                writeScheduled = false;
+                if (scheduledWrite != null)
+                    scheduledWrite.cancel(false);
+                scheduledWrite = null;
+                writtenValues = new HashMap<>(pendingValues);
+                writtenRemovals = new HashSet<>(pendingRemovals);
+            }
+            try {
+                Boolean written = withConfigurationAdmin(configurationAdmin -> {
+                    Configuration configuration = configurationAdmin.getConfiguration(DEFAULT_CFG_PID);
+                    Map<String, Object> values = new HashMap<>();
+                    Dictionary<String, Object> current = configuration.getProperties();
+                    if (current != null)
+                        current.keys().asIterator().forEachRemaining(key -> values.put(key, current.get(key)));
+                    values.putAll(writtenValues);
+                    writtenRemovals.forEach(values::remove);
+                    //save config osgi
+                    configuration.update(new Hashtable<>(values));
+                    return true;
+                });
+                if (Boolean.TRUE.equals(written))
+                    clearWrittenChanges(writtenValues, writtenRemovals);
+            } catch (Exception e) {
+                logger.error(e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Written changes are read back from ConfigurationAdmin from now on,
+     * changes made while writing stay pending for the next write.
+     */
+    private synchronized void clearWrittenChanges(Map<String, Object> writtenValues, Set<String> writtenRemovals) {
+        writtenValues.forEach(pendingValues::remove);
+        pendingRemovals.removeAll(writtenRemovals);
+    }
+
+    private static ScheduledThreadPoolExecutor createConfigurationWriter() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "water-application-properties-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        //postponed writes are removed from the queue as soon as they are cancelled
+        executor.setRemoveOnCancelPolicy(true);
+        //no idle thread once startup contributions are written
+        executor.setKeepAliveTime(30, TimeUnit.SECONDS);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    @FunctionalInterface
+    private interface ConfigurationAdminAction<T> {
+        T apply(ConfigurationAdmin configurationAdmin) throws IOException;
     }
 }
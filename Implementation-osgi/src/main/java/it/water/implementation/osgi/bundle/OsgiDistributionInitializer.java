@@ -20,6 +20,7 @@ package it.water.implementation.osgi.bundle;
 import it.water.core.api.registry.ComponentRegistry;
 import it.water.implementation.osgi.interceptors.ServiceHooks;
 import it.water.implementation.osgi.registry.OsgiComponentRegistry;
+import it.water.implementation.osgi.util.OSGiUtil;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.hooks.service.EventListenerHook;
 import org.osgi.framework.hooks.service.FindHook;
@@ -40,7 +41,24 @@ public class OsgiDistributionInitializer<T> extends WaterBundleActivator<T> {
     public void start(BundleContext bundleContext) throws Exception {
         super.start(bundleContext);
         log.info("Starting interceptors...");
+        OSGiUtil.startProxyClassCache(bundleContext);
         this.startInterceptors(bundleContext);
+        this.setupIndexedLookup(bundleContext);
+    }
+
+    @Override
+    public void stop(BundleContext bundleContext) throws Exception {
+        OsgiComponentRegistry.getInstance().disableIndexedLookup();
+        OsgiComponentRegistry.getInstance().releaseServiceHandles();
+        OSGiUtil.stopProxyClassCache(bundleContext);
+        super.stop(bundleContext);
+    }
+
+    private void setupIndexedLookup(BundleContext context) {
+        if (Boolean.parseBoolean(context.getProperty(OsgiComponentRegistry.INDEXED_LOOKUP_PROPERTY))) {
+            log.debug("Enabling component registry indexed lookup...");
+            OsgiComponentRegistry.getInstance().enableIndexedLookup(context);
+        }
     }
 
     private void startInterceptors(BundleContext context) {
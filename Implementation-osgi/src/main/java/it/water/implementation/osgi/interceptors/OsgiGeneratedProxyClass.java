@@ -0,0 +1,56 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.implementation.osgi.interceptors;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.Method;
+
+
+/**
+ * @Author Aristide Cittadino
+ * Proxy class generated by OsgiProxyGenerator, it can be used to create any number of proxies for the same interfaces.
+ */
+public final class OsgiGeneratedProxyClass {
+    private final Class<?> proxyClass;
+    private final Method[] methods;
+    //(OsgiProxyDispatcher)Object
+    private final MethodHandle constructor;
+
+    OsgiGeneratedProxyClass(Class<?> proxyClass, Method[] methods, MethodHandle constructor) {
+        this.proxyClass = proxyClass;
+        this.methods = methods;
+        this.constructor = constructor;
+    }
+
+    public Class<?> getProxyClass() {
+        return proxyClass;
+    }
+
+    /**
+     * @param interceptor interceptor which wraps the service
+     * @return a new proxy instance
+     */
+    public Object newInstance(OsgiServiceInterceptor<?> interceptor) {
+        try {
+            return (Object) constructor.invokeExact(new OsgiProxyDispatcher(interceptor, methods));
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.implementation.osgi.interceptors;
+
+
+/**
+ * @Author Aristide Cittadino
+ * Implemented by the proxy classes generated by OsgiProxyGenerator.
+ * Used to get back the interceptor of a proxy, as Proxy.getInvocationHandler does for java.lang.reflect.Proxy instances.
+ */
+public interface OsgiGeneratedServiceProxy {
+    /**
+     * @return the interceptor which wraps the service
+     */
+    OsgiServiceInterceptor<?> waterServiceInterceptor();
+}
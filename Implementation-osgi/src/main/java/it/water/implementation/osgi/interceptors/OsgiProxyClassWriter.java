@@ -0,0 +1,469 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.implementation.osgi.interceptors;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * @Author Aristide Cittadino
+ * Writes the class file of a generated service proxy.
+ * Each proxy method boxes the arguments for the interceptors, then calls "before", the target and "after"
+ * with plain invokevirtual/invokeinterface instructions, so no reflection is involved in the invocation.
+ * Methods are straight line code without branches or exception handlers, so no stack map frames are needed.
+ */
+final class OsgiProxyClassWriter {
+    private static final int CLASS_VERSION = 52;
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_PRIVATE = 0x0002;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+    private static final String OBJECT = "java/lang/Object";
+    private static final String DISPATCHER = internalName(OsgiProxyDispatcher.class);
+    private static final String DISPATCHER_FIELD = "dispatcher";
+    private static final String DISPATCHER_DESCRIPTOR = "L" + DISPATCHER + ";";
+    private static final String TARGET_DESCRIPTOR = "()Ljava/lang/Object;";
+    private static final String BEFORE_DESCRIPTOR = "(Ljava/lang/Object;I[Ljava/lang/Object;)V";
+    private static final String AFTER_DESCRIPTOR = "(Ljava/lang/Object;I[Ljava/lang/Object;Ljava/lang/Object;)V";
+    static final String INTERCEPTOR_METHOD = "waterServiceInterceptor";
+    static final String INTERCEPTOR_METHOD_DESCRIPTOR = "()L" + internalName(OsgiServiceInterceptor.class) + ";";
+
+    //opcodes
+    private static final int ACONST_NULL = 0x01;
+    private static final int ICONST_0 = 0x03;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int ILOAD = 0x15;
+    private static final int LLOAD = 0x16;
+    private static final int FLOAD = 0x17;
+    private static final int DLOAD = 0x18;
+    private static final int ALOAD = 0x19;
+    private static final int ISTORE = 0x36;
+    private static final int LSTORE = 0x37;
+    private static final int FSTORE = 0x38;
+    private static final int DSTORE = 0x39;
+    private static final int ASTORE = 0x3a;
+    private static final int AASTORE = 0x53;
+    private static final int DUP = 0x59;
+    private static final int IRETURN = 0xac;
+    private static final int LRETURN = 0xad;
+    private static final int FRETURN = 0xae;
+    private static final int DRETURN = 0xaf;
+    private static final int ARETURN = 0xb0;
+    private static final int RETURN = 0xb1;
+    private static final int GETFIELD = 0xb4;
+    private static final int PUTFIELD = 0xb5;
+    private static final int INVOKEVIRTUAL = 0xb6;
+    private static final int INVOKESPECIAL = 0xb7;
+    private static final int INVOKESTATIC = 0xb8;
+    private static final int INVOKEINTERFACE = 0xb9;
+    private static final int ANEWARRAY = 0xbd;
+    private static final int CHECKCAST = 0xc0;
+    private static final int WIDE = 0xc4;
+
+    private final ByteArrayOutputStream constantPool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(constantPool);
+    private final Map<String, Integer> poolEntries = new HashMap<>();
+    private int poolSize = 1;
+
+    private OsgiProxyClassWriter() {
+    }
+
+    /**
+     * @param className  internal name of the proxy class
+     * @param interfaces interfaces implemented by the proxy
+     * @param methods    proxied methods, the position is the index passed to the dispatcher
+     * @return the class file bytes
+     */
+    static byte[] write(String className, Class<?>[] interfaces, Method[] methods) {
+        try {
+            return new OsgiProxyClassWriter().writeClass(className, interfaces, methods);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private byte[] writeClass(String className, Class<?>[] interfaces, Method[] methods) throws IOException {
+        if (methods.length > Short.MAX_VALUE)
+            throw new IllegalArgumentException("Too many methods to proxy: " + methods.length);
+        int thisClass = classRef(className);
+        int superClass = classRef(OBJECT);
+        int[] interfaceRefs = new int[interfaces.length + 1];
+        for (int i = 0; i < interfaces.length; i++) {
+            interfaceRefs[i] = classRef(internalName(interfaces[i]));
+        }
+        interfaceRefs[interfaces.length] = classRef(internalName(OsgiGeneratedServiceProxy.class));
+        int fieldName = utf8(DISPATCHER_FIELD);
+        int fieldDescriptor = utf8(DISPATCHER_DESCRIPTOR);
+        int dispatcherField = fieldRef(className, DISPATCHER_FIELD, DISPATCHER_DESCRIPTOR);
+
+        ByteArrayOutputStream methodsBytes = new ByteArrayOutputStream();
+        DataOutputStream methodsOut = new DataOutputStream(methodsBytes);
+        writeConstructor(methodsOut, dispatcherField);
+        writeInterceptorGetter(methodsOut, dispatcherField);
+        for (int i = 0; i < methods.length; i++) {
+            writeProxyMethod(methodsOut, dispatcherField, methods[i], i);
+        }
+
+        ByteArrayOutputStream classBytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(classBytes);
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);
+        out.writeShort(CLASS_VERSION);
+        out.writeShort(poolSize);
+        constantPool.writeTo(out);
+        out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+        out.writeShort(thisClass);
+        out.writeShort(superClass);
+        out.writeShort(interfaceRefs.length);
+        for (int interfaceRef : interfaceRefs) {
+            out.writeShort(interfaceRef);
+        }
+        //fields
+        out.writeShort(1);
+        out.writeShort(ACC_PRIVATE | ACC_FINAL);
+        out.writeShort(fieldName);
+        out.writeShort(fieldDescriptor);
+        out.writeShort(0);
+        //methods: constructor, interceptor getter and proxied methods
+        out.writeShort(methods.length + 2);
+        methodsBytes.writeTo(out);
+        //class attributes
+        out.writeShort(0);
+        out.flush();
+        return classBytes.toByteArray();
+    }
+
+    private void writeConstructor(DataOutputStream out, int dispatcherField) throws IOException {
+        Code code = new Code();
+        code.load(ALOAD, 0);
+        code.op(INVOKESPECIAL).u2(methodRef(OBJECT, "<init>", "()V", false));
+        code.load(ALOAD, 0);
+        code.load(ALOAD, 1);
+        code.op(PUTFIELD).u2(dispatcherField);
+        code.op(RETURN);
+        writeMethod(out, "<init>", "(" + DISPATCHER_DESCRIPTOR + ")V", code, 2, 2);
+    }
+
+    private void writeInterceptorGetter(DataOutputStream out, int dispatcherField) throws IOException {
+        Code code = new Code();
+        code.load(ALOAD, 0);
+        code.op(GETFIELD).u2(dispatcherField);
+        code.op(INVOKEVIRTUAL).u2(methodRef(DISPATCHER, "getInterceptor", INTERCEPTOR_METHOD_DESCRIPTOR, false));
+        code.op(ARETURN);
+        writeMethod(out, INTERCEPTOR_METHOD, INTERCEPTOR_METHOD_DESCRIPTOR, code, 1, 1);
+    }
+
+    private void writeProxyMethod(DataOutputStream out, int dispatcherField, Method method, int methodIndex) throws IOException {
+        Class<?>[] parameterTypes = method.getParameterTypes();
+        Class<?> returnType = method.getReturnType();
+        int parameterSlots = 0;
+        for (Class<?> parameterType : parameterTypes) {
+            parameterSlots += slots(parameterType);
+        }
+        int targetSlot = 1 + parameterSlots;
+        int argsSlot = targetSlot + 1;
+        int resultSlot = argsSlot + 1;
+        Code code = new Code();
+        //reading the target once, so before, invocation and after refer to the same instance
+        code.load(ALOAD, 0);
+        code.op(GETFIELD).u2(dispatcherField);
+        code.op(INVOKEVIRTUAL).u2(methodRef(DISPATCHER, "target", TARGET_DESCRIPTOR, false));
+        code.store(ASTORE, targetSlot);
+        //interceptors receive null arguments for methods without parameters, as with java.lang.reflect.Proxy
+        if (parameterTypes.length == 0) {
+            code.op(ACONST_NULL);
+        } else {
+            code.pushInt(parameterTypes.length);
+            code.op(ANEWARRAY).u2(classRef(OBJECT));
+            int slot = 1;
+            for (int i = 0; i < parameterTypes.length; i++) {
+                code.op(DUP);
+                code.pushInt(i);
+                code.load(loadOpcode(parameterTypes[i]), slot);
+                box(code, parameterTypes[i]);
+                code.op(AASTORE);
+                slot += slots(parameterTypes[i]);
+            }
+        }
+        code.store(ASTORE, argsSlot);
+        //before
+        code.load(ALOAD, 0);
+        code.op(GETFIELD).u2(dispatcherField);
+        code.load(ALOAD, targetSlot);
+        code.pushInt(methodIndex);
+        code.load(ALOAD, argsSlot);
+        code.op(INVOKEVIRTUAL).u2(methodRef(DISPATCHER, "before", BEFORE_DESCRIPTOR, false));
+        //target invocation
+        code.load(ALOAD, targetSlot);
+        Class<?> owner = method.getDeclaringClass();
+        if (owner != Object.class)
+            code.op(CHECKCAST).u2(classRef(internalName(owner)));
+        int slot = 1;
+        for (Class<?> parameterType : parameterTypes) {
+            code.load(loadOpcode(parameterType), slot);
+            slot += slots(parameterType);
+        }
+        String descriptor = methodDescriptor(method);
+        if (owner.isInterface()) {
+            code.op(INVOKEINTERFACE).u2(methodRef(internalName(owner), method.getName(), descriptor, true)).u1(1 + parameterSlots).u1(0);
+        } else {
+            code.op(INVOKEVIRTUAL).u2(methodRef(internalName(owner), method.getName(), descriptor, false));
+        }
+        if (returnType != void.class)
+            code.store(storeOpcode(returnType), resultSlot);
+        //after
+        code.load(ALOAD, 0);
+        code.op(GETFIELD).u2(dispatcherField);
+        code.load(ALOAD, targetSlot);
+        code.pushInt(methodIndex);
+        code.load(ALOAD, argsSlot);
+        if (returnType == void.class) {
+            code.op(ACONST_NULL);
+        } else {
+            code.load(loadOpcode(returnType), resultSlot);
+            box(code, returnType);
+        }
+        code.op(INVOKEVIRTUAL).u2(methodRef(DISPATCHER, "after", AFTER_DESCRIPTOR, false));
+        if (returnType == void.class) {
+            code.op(RETURN);
+        } else {
+            code.load(loadOpcode(returnType), resultSlot);
+            code.op(returnOpcode(returnType));
+        }
+        //after hook needs 5 slots plus a wide boxed result, array filling needs 5 slots
+        int maxStack = Math.max(7, 1 + parameterSlots);
+        writeMethod(out, method.getName(), descriptor, code, maxStack, resultSlot + 2);
+    }
+
+    private void writeMethod(DataOutputStream out, String name, String descriptor, Code code, int maxStack, int maxLocals) throws IOException {
+        byte[] bytecode = code.toByteArray();
+        out.writeShort(ACC_PUBLIC);
+        out.writeShort(utf8(name));
+        out.writeShort(utf8(descriptor));
+        out.writeShort(1);
+        out.writeShort(utf8("Code"));
+        //max stack, max locals, code length, code, empty exception table, no attributes
+        out.writeInt(2 + 2 + 4 + bytecode.length + 2 + 2);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(bytecode.length);
+        out.write(bytecode);
+        out.writeShort(0);
+        out.writeShort(0);
+    }
+
+    private void box(Code code, Class<?> type) {
+        if (!type.isPrimitive())
+            return;
+        Class<?> wrapper = wrapperOf(type);
+        code.op(INVOKESTATIC).u2(methodRef(internalName(wrapper), "valueOf", "(" + descriptor(type) + ")" + descriptor(wrapper), false));
+    }
+
+    private int utf8(String value) throws IOException {
+        Integer index = poolEntries.get("U" + value);
+        if (index == null) {
+            poolOut.writeByte(1);
+            poolOut.writeUTF(value);
+            index = addEntry("U" + value);
+        }
+        return index;
+    }
+
+    private int classRef(String internalName) throws IOException {
+        Integer index = poolEntries.get("C" + internalName);
+        if (index == null) {
+            int name = utf8(internalName);
+            poolOut.writeByte(7);
+            poolOut.writeShort(name);
+            index = addEntry("C" + internalName);
+        }
+        return index;
+    }
+
+    private int nameAndType(String name, String descriptor) throws IOException {
+        String key = "N" + name + ":" + descriptor;
+        Integer index = poolEntries.get(key);
+        if (index == null) {
+            int nameIndex = utf8(name);
+            int descriptorIndex = utf8(descriptor);
+            poolOut.writeByte(12);
+            poolOut.writeShort(nameIndex);
+            poolOut.writeShort(descriptorIndex);
+            index = addEntry(key);
+        }
+        return index;
+    }
+
+    private int fieldRef(String owner, String name, String descriptor) throws IOException {
+        return memberRef(9, owner, name, descriptor);
+    }
+
+    private int methodRef(String owner, String name, String descriptor, boolean isInterface) {
+        try {
+            return memberRef(isInterface ? 11 : 10, owner, name, descriptor);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private int memberRef(int tag, String owner, String name, String descriptor) throws IOException {
+        String key = tag + owner + "." + name + ":" + descriptor;
+        Integer index = poolEntries.get(key);
+        if (index == null) {
+            int ownerIndex = classRef(owner);
+            int nameAndTypeIndex = nameAndType(name, descriptor);
+            poolOut.writeByte(tag);
+            poolOut.writeShort(ownerIndex);
+            poolOut.writeShort(nameAndTypeIndex);
+            index = addEntry(key);
+        }
+        return index;
+    }
+
+    private int addEntry(String key) {
+        int index = poolSize++;
+        if (poolSize > 0xFFFF)
+            throw new IllegalArgumentException("Too many constants in proxy class");
+        poolEntries.put(key, index);
+        return index;
+    }
+
+    static String internalName(Class<?> type) {
+        return type.getName().replace('.', '/');
+    }
+
+    static String methodDescriptor(Method method) {
+        StringBuilder sb = new StringBuilder("(");
+        for (Class<?> parameterType : method.getParameterTypes()) {
+            sb.append(descriptor(parameterType));
+        }
+        return sb.append(")").append(descriptor(method.getReturnType())).toString();
+    }
+
+    private static String descriptor(Class<?> type) {
+        if (type.isArray())
+            return internalName(type);
+        if (!type.isPrimitive())
+            return "L" + internalName(type) + ";";
+        if (type == void.class) return "V";
+        if (type == boolean.class) return "Z";
+        if (type == byte.class) return "B";
+        if (type == char.class) return "C";
+        if (type == short.class) return "S";
+        if (type == int.class) return "I";
+        if (type == long.class) return "J";
+        if (type == float.class) return "F";
+        return "D";
+    }
+
+    private static Class<?> wrapperOf(Class<?> type) {
+        if (type == boolean.class) return Boolean.class;
+        if (type == byte.class) return Byte.class;
+        if (type == char.class) return Character.class;
+        if (type == short.class) return Short.class;
+        if (type == int.class) return Integer.class;
+        if (type == long.class) return Long.class;
+        if (type == float.class) return Float.class;
+        return Double.class;
+    }
+
+    private static int slots(Class<?> type) {
+        return (type == long.class || type == double.class) ? 2 : 1;
+    }
+
+    private static int loadOpcode(Class<?> type) {
+        if (!type.isPrimitive()) return ALOAD;
+        if (type == long.class) return LLOAD;
+        if (type == float.class) return FLOAD;
+        if (type == double.class) return DLOAD;
+        return ILOAD;
+    }
+
+    private static int storeOpcode(Class<?> type) {
+        if (!type.isPrimitive()) return ASTORE;
+        if (type == long.class) return LSTORE;
+        if (type == float.class) return FSTORE;
+        if (type == double.class) return DSTORE;
+        return ISTORE;
+    }
+
+    private static int returnOpcode(Class<?> type) {
+        if (!type.isPrimitive()) return ARETURN;
+        if (type == long.class) return LRETURN;
+        if (type == float.class) return FRETURN;
+        if (type == double.class) return DRETURN;
+        return IRETURN;
+    }
+
+    /**
+     * Bytecode of a single method.
+     */
+    private static class Code {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        private Code op(int opcode) {
+            bytes.write(opcode);
+            return this;
+        }
+
+        private Code u1(int value) {
+            bytes.write(value);
+            return this;
+        }
+
+        private Code u2(int value) {
+            bytes.write(value >>> 8);
+            bytes.write(value);
+            return this;
+        }
+
+        private void pushInt(int value) {
+            if (value >= -1 && value <= 5)
+                op(ICONST_0 + value);
+            else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE)
+                op(BIPUSH).u1(value);
+            else
+                op(SIPUSH).u2(value);
+        }
+
+        private void load(int opcode, int slot) {
+            localInstruction(opcode, slot);
+        }
+
+        private void store(int opcode, int slot) {
+            localInstruction(opcode, slot);
+        }
+
+        private void localInstruction(int opcode, int slot) {
+            if (slot > 0xFF)
+                op(WIDE).op(opcode).u2(slot);
+            else
+                op(opcode).u1(slot);
+        }
+
+        private byte[] toByteArray() {
+            return bytes.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.implementation.osgi.interceptors;
+
+import it.water.core.api.service.Service;
+
+import java.lang.reflect.Method;
+
+
+/**
+ * @Author Aristide Cittadino
+ * Bridge between a generated proxy and its interceptor.
+ * Generated methods read the target once, then call the interceptor hooks and the target directly,
+ * identifying the invoked method by its index inside the proxy methods table.
+ */
+final class OsgiProxyDispatcher {
+    private final OsgiServiceInterceptor<Service> interceptor;
+    private final Method[] methods;
+
+    @SuppressWarnings("unchecked")
+    OsgiProxyDispatcher(OsgiServiceInterceptor<?> interceptor, Method[] methods) {
+        this.interceptor = (OsgiServiceInterceptor<Service>) interceptor;
+        this.methods = methods;
+    }
+
+    OsgiServiceInterceptor<?> getInterceptor() {
+        return interceptor;
+    }
+
+    /**
+     * @return the service currently wrapped by the interceptor
+     */
+    Object target() {
+        return interceptor.getService();
+    }
+
+    void before(Object target, int methodIndex, Object[] args) {
+        interceptor.beforeInvocation((Service) target, methods[methodIndex], args);
+    }
+
+    void after(Object target, int methodIndex, Object[] args, Object result) {
+        interceptor.afterInvocation((Service) target, methods[methodIndex], args, result);
+    }
+}
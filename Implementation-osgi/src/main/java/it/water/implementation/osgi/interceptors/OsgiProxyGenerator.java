@@ -0,0 +1,144 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.implementation.osgi.interceptors;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * @Author Aristide Cittadino
+ * Alternative to java.lang.reflect.Proxy for Water services.
+ * It defines a hidden class implementing the service interfaces, whose methods call the interceptor hooks
+ * and the target service directly instead of going through InvocationHandler and Method.invoke.
+ * Proxied methods, method objects and arguments passed to interceptors are the same used by java.lang.reflect.Proxy.
+ */
+public final class OsgiProxyGenerator {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    //hidden classes must be defined in the same package of the lookup class
+    private static final String PROXY_CLASS_NAME = OsgiProxyClassWriter.internalName(OsgiProxyGenerator.class).replace("OsgiProxyGenerator", "OsgiGeneratedProxy");
+    private static final Method[] OBJECT_METHODS;
+
+    static {
+        try {
+            OBJECT_METHODS = new Method[]{
+                    Object.class.getMethod("hashCode"),
+                    Object.class.getMethod("equals", Object.class),
+                    Object.class.getMethod("toString")
+            };
+        } catch (NoSuchMethodException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private OsgiProxyGenerator() {
+    }
+
+    /**
+     * Generates the proxy class for the given interfaces.
+     *
+     * @param interfaces interfaces implemented by the proxy, they and the types of their methods must be public and visible from this bundle
+     * @return the generated proxy class
+     * @throws IllegalArgumentException if a proxy class cannot be generated for the given interfaces
+     */
+    public static OsgiGeneratedProxyClass defineProxyClass(Class<?>[] interfaces) {
+        for (Class<?> proxiedInterface : interfaces) {
+            if (!proxiedInterface.isInterface())
+                throw new IllegalArgumentException(proxiedInterface.getName() + " is not an interface");
+            checkLinkable(proxiedInterface);
+        }
+        Method[] methods = collectMethods(interfaces);
+        for (Method method : methods) {
+            checkLinkable(method);
+        }
+        byte[] classBytes = OsgiProxyClassWriter.write(PROXY_CLASS_NAME, interfaces, methods);
+        try {
+            //not strong: the class is unloaded as soon as proxies and cached references are gone
+            MethodHandles.Lookup proxyLookup = LOOKUP.defineHiddenClass(classBytes, true);
+            MethodHandle constructor = proxyLookup.findConstructor(proxyLookup.lookupClass(), MethodType.methodType(void.class, OsgiProxyDispatcher.class));
+            return new OsgiGeneratedProxyClass(proxyLookup.lookupClass(), methods, constructor.asType(MethodType.methodType(Object.class, OsgiProxyDispatcher.class)));
+        } catch (IllegalAccessException | NoSuchMethodException | LinkageError e) {
+            throw new IllegalArgumentException("Cannot generate proxy class: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @param interfaces  interfaces implemented by the proxy
+     * @param interceptor interceptor which wraps the service
+     * @return a new proxy instance
+     */
+    public static Object newProxyInstance(Class<?>[] interfaces, OsgiServiceInterceptor<?> interceptor) {
+        return defineProxyClass(interfaces).newInstance(interceptor);
+    }
+
+    /**
+     * Every type referenced by the generated method is linked by this bundle class loader:
+     * a type which is not public or resolves to a different class would fail only when the method is invoked.
+     */
+    private static void checkLinkable(Method method) {
+        checkLinkable(method.getDeclaringClass());
+        checkLinkable(method.getReturnType());
+        for (Class<?> parameterType : method.getParameterTypes()) {
+            checkLinkable(parameterType);
+        }
+        for (Class<?> exceptionType : method.getExceptionTypes()) {
+            checkLinkable(exceptionType);
+        }
+    }
+
+    private static void checkLinkable(Class<?> type) {
+        while (type.isArray()) {
+            type = type.getComponentType();
+        }
+        if (type.isPrimitive())
+            return;
+        if (!Modifier.isPublic(type.getModifiers()))
+            throw new IllegalArgumentException(type.getName() + " is not public");
+        try {
+            //the generated class is linked by this bundle class loader
+            if (Class.forName(type.getName(), false, OsgiProxyGenerator.class.getClassLoader()) != type)
+                throw new IllegalArgumentException(type.getName() + " is not visible from the proxy class loader");
+        } catch (ClassNotFoundException e) {
+            throw new IllegalArgumentException(type.getName() + " is not visible from the proxy class loader", e);
+        }
+    }
+
+    /**
+     * Object methods first, then interfaces methods: duplicates are proxied once, as java.lang.reflect.Proxy does.
+     * Methods which differ only for the return type are all proxied, since each one is a different method for the JVM.
+     */
+    private static Method[] collectMethods(Class<?>[] interfaces) {
+        Map<String, Method> methods = new LinkedHashMap<>();
+        for (Method method : OBJECT_METHODS) {
+            methods.put(method.getName() + OsgiProxyClassWriter.methodDescriptor(method), method);
+        }
+        for (Class<?> proxiedInterface : interfaces) {
+            for (Method method : proxiedInterface.getMethods()) {
+                if (!Modifier.isStatic(method.getModifiers()))
+                    methods.putIfAbsent(method.getName() + OsgiProxyClassWriter.methodDescriptor(method), method);
+            }
+        }
+        if (methods.containsKey(OsgiProxyClassWriter.INTERCEPTOR_METHOD + OsgiProxyClassWriter.INTERCEPTOR_METHOD_DESCRIPTOR))
+            throw new IllegalArgumentException("Interfaces declare a method reserved to generated proxies");
+        return methods.values().toArray(new Method[0]);
+    }
+}
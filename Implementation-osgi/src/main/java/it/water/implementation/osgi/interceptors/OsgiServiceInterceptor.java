@@ -19,6 +19,7 @@ package it.water.implementation.osgi.interceptors;
 import it.water.core.api.registry.ComponentRegistry;
 import it.water.core.api.service.Service;
 import it.water.core.interceptors.WaterAbstractInterceptor;
+import it.water.implementation.core.interceptors.InvocationPlan;
 import lombok.Getter;
 import org.osgi.framework.ServiceRegistration;
 import org.slf4j.Logger;
@@ -28,6 +29,7 @@ import java.io.Serializable;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.UndeclaredThrowableException;
 
 
 /**
@@ -41,12 +43,31 @@ public class OsgiServiceInterceptor<S extends Service> extends WaterAbstractInte
     private transient ServiceRegistration<S> registration;
     @Getter
     private transient ComponentRegistry componentRegistry;
+    //current delegate, it can be swapped while the proxy is in use
+    private volatile S delegate;
 
     public OsgiServiceInterceptor(S service, ComponentRegistry componentRegistry) {
         super(service);
+        this.delegate = service;
         this.componentRegistry = componentRegistry;
     }
 
+    @Override
+    public S getService() {
+        return delegate;
+    }
+
+    /**
+     * Swaps the wrapped service, invocations started after this call are dispatched to the new service.
+     *
+     * @param service new service
+     */
+    @Override
+    public void setService(S service) {
+        super.setService(service);
+        this.delegate = service;
+    }
+
     public ServiceRegistration<S> getRegistration() {
         return registration;
     }
@@ -57,6 +78,7 @@ public class OsgiServiceInterceptor<S extends Service> extends WaterAbstractInte
 
     /**
      * Each invocation is wrapped between "intercept before" and "intercept after".
+     * The chain is skipped when the invocation plan of the method is empty.
      *
      * @param proxy
      * @param method
@@ -66,10 +88,14 @@ public class OsgiServiceInterceptor<S extends Service> extends WaterAbstractInte
      */
     @Override
     public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        S service = getService();
+        boolean intercepted = !InvocationPlan.forMethod(service.getClass(), method).isNoOp();
         try {
-            executeInterceptorBeforeMethod(getService(), method, args);
-            Object invoke = method.invoke(getService(), args);
-            executeInterceptorAfterMethod(getService(), method, args, invoke);
+            if (intercepted)
+                executeInterceptorBeforeMethod(service, method, args);
+            Object invoke = method.invoke(service, args);
+            if (intercepted)
+                executeInterceptorAfterMethod(service, method, args, invoke);
             return invoke;
         } catch (IllegalAccessException | NoSuchMethodException e) {
             log.error(e.getMessage(), e);
@@ -81,6 +107,55 @@ public class OsgiServiceInterceptor<S extends Service> extends WaterAbstractInte
         }
     }
 
+    /**
+     * @param serviceClass concrete class of the service
+     * @return false if no interceptor can be bound to any method of the service, so a proxy would only delegate
+     */
+    public static boolean isInterceptable(Class<?> serviceClass) {
+        return InvocationPlan.isInterceptable(serviceClass);
+    }
+
+    /**
+     * Executes "intercept before" for proxies which invoke the service directly.
+     *
+     * @param service service which is going to be invoked
+     * @param method  invoked method
+     * @param args    invocation arguments
+     */
+    void beforeInvocation(S service, Method method, Object[] args) {
+        if (InvocationPlan.forMethod(service.getClass(), method).isNoOp())
+            return;
+        try {
+            executeInterceptorBeforeMethod(service, method, args);
+        } catch (NoSuchMethodException e) {
+            throw interceptionError(service, method, e);
+        }
+    }
+
+    /**
+     * Executes "intercept after" for proxies which invoke the service directly.
+     *
+     * @param service service which has been invoked
+     * @param method  invoked method
+     * @param args    invocation arguments
+     * @param result  invocation result
+     */
+    void afterInvocation(S service, Method method, Object[] args, Object result) {
+        if (InvocationPlan.forMethod(service.getClass(), method).isNoOp())
+            return;
+        try {
+            executeInterceptorAfterMethod(service, method, args, result);
+        } catch (NoSuchMethodException e) {
+            throw interceptionError(service, method, e);
+        }
+    }
+
+    //same error raised by java.lang.reflect.Proxy when invoke throws an undeclared checked exception
+    private UndeclaredThrowableException interceptionError(S service, Method method, Exception e) {
+        log.error(e.getMessage(), e);
+        return new UndeclaredThrowableException(new IllegalAccessException("Error while intercept method call for: " + service.getClass().getName() + " " + method.getName()));
+    }
+
     @Override
     protected ComponentRegistry getComponentsRegistry() {
         return this.componentRegistry;
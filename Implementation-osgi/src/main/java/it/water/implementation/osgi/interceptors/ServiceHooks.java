@@ -21,15 +21,25 @@ import it.water.core.api.service.Service;
 import it.water.implementation.osgi.util.OSGiUtil;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
 import org.osgi.framework.ServiceEvent;
 import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
 import org.osgi.framework.hooks.service.EventListenerHook;
 import org.osgi.framework.hooks.service.FindHook;
 import org.osgi.framework.hooks.service.ListenerHook;
+import org.osgi.framework.wiring.BundleRevision;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.osgi.framework.ServiceEvent.*;
 
@@ -45,9 +55,19 @@ public class ServiceHooks implements EventListenerHook, FindHook {
     private static final String OBJECT_CLASS = "objectClass";
 
     private ComponentRegistry componentRegistry;
+    //original service id -> proxy of the service, removed when the original service is unregistered
+    private final Map<Long, ProxiedService> proxiedServices = new ConcurrentHashMap<>();
+    //service id -> true if the service is an original water service, which must be hidden and proxied
+    private final Map<Long, Boolean> waterServiceVerdicts = new ConcurrentHashMap<>();
+    //bundle revision -> (interface name -> true if the interface extends Service), dropped with the revision
+    //only interfaces loaded by the revision are cached
+    private final Map<BundleRevision, Map<String, Boolean>> serviceInterfaces = Collections.synchronizedMap(new WeakHashMap<>());
+    //framework property, read once since it cannot change while the framework is running
+    private final boolean passthroughEnabled;
 
     public ServiceHooks(BundleContext bc, ComponentRegistry componentRegistry) {
         this.componentRegistry = componentRegistry;
+        this.passthroughEnabled = OSGiUtil.isPassthroughEnabled(bc.getBundle());
         //getting already registered bundles
         this.loadAlreadyRegisteredServices(bc.getBundles());
     }
@@ -57,26 +77,60 @@ public class ServiceHooks implements EventListenerHook, FindHook {
      * @Aristide Cittadino
      * It can be possible that some Service are loaded before this hook is loaded ex. AuthenticationSystemApi
      * This method is invoked at Hook startup and analyze already registered bundles , searching for Service to proxy
+     * Bundles are analyzed in parallel on a bounded executor, returning only when all of them have been processed,
+     * so find filtering is consistent as soon as hooks are published.
      */
     private void loadAlreadyRegisteredServices(Bundle[] alreadyRegistereSerivces) {
-        for (Bundle b : alreadyRegistereSerivces) {
-            registerWaterServiceFromBundle(b);
+        int parallelism = Math.min(Runtime.getRuntime().availableProcessors(), alreadyRegistereSerivces.length);
+        if (parallelism <= 1) {
+            for (Bundle b : alreadyRegistereSerivces) {
+                registerWaterServiceFromBundle(b);
+            }
+            return;
+        }
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "water-service-hooks-scan-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Callable<Void>> tasks = new ArrayList<>(alreadyRegistereSerivces.length);
+            for (Bundle b : alreadyRegistereSerivces) {
+                tasks.add(() -> {
+                    registerWaterServiceFromBundle(b);
+                    return null;
+                });
+            }
+            //invokeAll is the barrier: it returns when every bundle has been processed
+            for (Future<Void> result : executor.invokeAll(tasks)) {
+                waitScan(result);
+            }
+        } catch (InterruptedException e) {
+            log.warn("Interrupted while proxying already registered services, some services may not be proxied");
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void waitScan(Future<Void> result) throws InterruptedException {
+        try {
+            result.get();
+        } catch (ExecutionException e) {
+            log.error(e.getCause().getMessage(), e.getCause());
         }
     }
 
-    private <S extends Service> void registerWaterServiceFromBundle(Bundle b) {
+    private void registerWaterServiceFromBundle(Bundle b) {
         ServiceReference<?>[] references = b.getRegisteredServices();
         if (references != null) {
             for (ServiceReference<?> serviceReference : references) {
-                String[] propertyKeys = serviceReference.getPropertyKeys();
-                Dictionary<String, Object> properties = buildProps(propertyKeys, serviceReference);
                 Bundle bundle = serviceReference.getBundle();
                 if (bundle != null && isWaterService(serviceReference)) {
                     @SuppressWarnings("unchecked")
-                    ServiceReference<S> wtfServiceRef = (ServiceReference<S>) serviceReference;
-                    String[] interfaces = (String[]) wtfServiceRef.getProperty(OBJECT_CLASS);
-                    S service = bundle.getBundleContext().getService(wtfServiceRef);
-                    OSGiUtil.registerProxyService(bundle, interfaces, properties, this.getClass().getClassLoader(), service, this.componentRegistry);
+                    ServiceReference<Service> wtfServiceRef = (ServiceReference<Service>) serviceReference;
+                    proxyService(bundle, wtfServiceRef, new ServiceReferenceDictionary(serviceReference));
                 }
             }
         }
@@ -121,33 +175,36 @@ public class ServiceHooks implements EventListenerHook, FindHook {
     public void event(ServiceEvent event, Map<BundleContext, Collection<ListenerHook.ListenerInfo>> listeners) {
         try {
             final ServiceReference<?> serviceReference = event.getServiceReference();
-            String[] propertyKeys = serviceReference.getPropertyKeys();
-            Dictionary<String, Object> properties = buildProps(propertyKeys, serviceReference);
-            Bundle bundle = serviceReference.getBundle();
-            if (isWaterService(serviceReference)) {
+            Long serviceId = (Long) serviceReference.getProperty(Constants.SERVICE_ID);
+            //properties may have changed the verdict
+            if (event.getType() == MODIFIED || event.getType() == MODIFIED_ENDMATCH)
+                waterServiceVerdicts.remove(serviceId);
+            boolean waterService = isWaterService(serviceReference);
+            if (event.getType() == UNREGISTERING)
+                waterServiceVerdicts.remove(serviceId);
+            if (!waterService && event.getType() == MODIFIED) {
+                //the service is not a water service anymore
+                unproxyService(serviceId);
+            } else if (waterService) {
+                //properties are read only for water services, through a view over the reference
+                Dictionary<String, Object> properties = new ServiceReferenceDictionary(serviceReference);
+                Bundle bundle = serviceReference.getBundle();
                 //no bundle will receive updates from this one because it's not the proxied one
                 listeners.clear();
                 @SuppressWarnings("unchecked")
                 ServiceReference<Service> wtfServiceRef = (ServiceReference<Service>) event.getServiceReference();
-                String[] interfaces = (String[]) wtfServiceRef.getProperty(OBJECT_CLASS);
                 switch (event.getType()) {
                     case REGISTERED: {
-                        Service service = (Service) bundle.getBundleContext().getService(serviceReference);
-                        if (service != null) {
-                            OSGiUtil.registerProxyService(bundle, interfaces, properties, this.getClass().getClassLoader(), service, this.componentRegistry);
-                        }
+                        proxyService(bundle, wtfServiceRef, properties);
                         break;
                     }
                     case UNREGISTERING: {
-                        OSGiUtil.unregisterProxyService(bundle, serviceReference.getClass());
+                        unproxyService(serviceId);
                         break;
                     }
                     case MODIFIED, MODIFIED_ENDMATCH: {
-                        Service s = (Service) bundle.getBundleContext().getService(serviceReference);
-                        OSGiUtil.unregisterProxyService(bundle, serviceReference.getClass());
-                        if (s != null) {
-                            OSGiUtil.registerProxyService(bundle, interfaces, properties, this.getClass().getClassLoader(), s, this.componentRegistry);
-                        }
+                        if (!updateProxyService(serviceId, wtfServiceRef, properties))
+                            proxyService(bundle, wtfServiceRef, properties);
                         break;
                     }
                     default: {
@@ -161,27 +218,170 @@ public class ServiceHooks implements EventListenerHook, FindHook {
     }
 
     /**
+     * Registers the proxy of the original service, only if the service has not been proxied yet.
+     *
+     * @param bundle           bundle which registered the service
+     * @param serviceReference original service reference
+     * @param properties       proxy registration properties
+     */
+    private void proxyService(Bundle bundle, ServiceReference<Service> serviceReference, Dictionary<String, Object> properties) {
+        Long serviceId = (Long) serviceReference.getProperty(Constants.SERVICE_ID);
+        BundleContext bundleContext = (bundle != null) ? bundle.getBundleContext() : null;
+        if (bundleContext == null || proxiedServices.containsKey(serviceId))
+            return;
+        Service service = bundleContext.getService(serviceReference);
+        if (service == null)
+            return;
+        OsgiServiceInterceptor<Service> interceptor = new OsgiServiceInterceptor<>(service, this.componentRegistry);
+        ProxiedService proxiedService = new ProxiedService(bundleContext, serviceReference, interceptor);
+        //initial scan and registration events can race on the same service
+        if (proxiedServices.putIfAbsent(serviceId, proxiedService) != null) {
+            proxiedService.release();
+            return;
+        }
+        String[] interfaces = (String[]) serviceReference.getProperty(OBJECT_CLASS);
+        proxiedService.registration = OSGiUtil.registerProxyService(bundle, interfaces, properties, this.getClass().getClassLoader(), interceptor);
+        //service unregistered while the proxy was being registered, or proxy not registered at all
+        if (proxiedServices.get(serviceId) != proxiedService || proxiedService.registration == null) {
+            proxiedServices.remove(serviceId, proxiedService);
+            proxiedService.release();
+        }
+    }
+
+    /**
+     * Updates the existing proxy instead of registering it again, so consumers are not unbound.
+     * Registration properties are replaced and the delegate of the interceptor is swapped if the service instance changed.
+     *
+     * @param serviceId        original service id
+     * @param serviceReference original service reference
+     * @param properties       new proxy registration properties
+     * @return false if the service has no proxy to update
+     */
+    private boolean updateProxyService(Long serviceId, ServiceReference<Service> serviceReference, Dictionary<String, Object> properties) {
+        ProxiedService proxiedService = proxiedServices.get(serviceId);
+        if (proxiedService == null || proxiedService.registration == null)
+            return false;
+        try {
+            proxiedService.registration.setProperties(properties);
+        } catch (IllegalStateException e) {
+            //proxy unregistered by someone else, it will be registered again
+            unproxyService(serviceId);
+            return false;
+        }
+        Service current = proxiedService.bundleContext.getService(serviceReference);
+        if (current != null) {
+            if (current != proxiedService.interceptor.getService())
+                proxiedService.interceptor.setService(current);
+            //keeping just the use count taken when the proxy was created
+            proxiedService.bundleContext.ungetService(serviceReference);
+        }
+        return true;
+    }
+
+    /**
+     * Unregisters the proxy of the original service and gives back the original service to the framework.
+     *
+     * @param serviceId original service id
+     */
+    private void unproxyService(Long serviceId) {
+        ProxiedService proxiedService = proxiedServices.remove(serviceId);
+        if (proxiedService != null)
+            proxiedService.release();
+    }
+
+    /**
+     * Verdicts are cached by service id, so filtering references in find is a map lookup.
+     *
      * @param sr
      * @return true if the service reference represents an Serivce
      */
     private boolean isWaterService(ServiceReference<?> sr) {
+        Long serviceId = (Long) sr.getProperty(Constants.SERVICE_ID);
+        Boolean verdict = waterServiceVerdicts.get(serviceId);
+        if (verdict == null) {
+            verdict = classify(sr);
+            //unregistered services have no bundle, their verdict must not be kept
+            if (sr.getBundle() != null)
+                waterServiceVerdicts.put(serviceId, verdict);
+        }
+        return verdict;
+    }
+
+    private boolean classify(ServiceReference<?> sr) {
+        return isOriginalWaterService(sr) && !isPassthroughService(sr);
+    }
+
+    private boolean isOriginalWaterService(ServiceReference<?> sr) {
         String[] interfaces = (String[]) sr.getProperty(OBJECT_CLASS);
-        boolean isProxy = OSGiUtil.isWaterServiceProxyInstance(sr);
-        return OSGiUtil.isWaterService(interfaces, isProxy, null);
+        if (OSGiUtil.isWaterServiceProxyInstance(sr) || interfaces == null)
+            return false;
+        Bundle bundle = sr.getBundle();
+        BundleRevision revision = (bundle != null) ? bundle.adapt(BundleRevision.class) : null;
+        if (revision == null)
+            return OSGiUtil.isWaterService(interfaces, false, null);
+        Map<String, Boolean> revisionInterfaces = serviceInterfaces.computeIfAbsent(revision, r -> new ConcurrentHashMap<>());
+        for (String interfaceName : interfaces) {
+            if (isServiceInterface(bundle, revisionInterfaces, interfaceName))
+                return true;
+        }
+        return false;
     }
 
     /**
-     * Copies all the pros of a service
-     *
-     * @param propertyKeys
-     * @param sr
-     * @return
+     * Interfaces are resolved through the bundle which registered the service, so the verdict belongs to its revision.
+     * Interfaces the bundle cannot load are checked from this bundle and never cached,
+     * they may become loadable later.
      */
-    private Dictionary<String, Object> buildProps(String[] propertyKeys, ServiceReference<?> sr) {
-        Map<Object, Object> properties = new HashMap<>();
-        for (String string : propertyKeys) {
-            properties.put(string, sr.getProperty(string));
+    private boolean isServiceInterface(Bundle bundle, Map<String, Boolean> revisionInterfaces, String interfaceName) {
+        Boolean serviceInterface = revisionInterfaces.get(interfaceName);
+        if (serviceInterface != null)
+            return serviceInterface;
+        try {
+            serviceInterface = Service.class.isAssignableFrom(bundle.loadClass(interfaceName));
+            revisionInterfaces.put(interfaceName, serviceInterface);
+            return serviceInterface;
+        } catch (ClassNotFoundException | IllegalStateException e) {
+            log.debug("Interface {} not visible from bundle {}: {}", interfaceName, bundle.getSymbolicName(), e.getMessage());
+            return OSGiUtil.isWaterService(new String[]{interfaceName}, false, null);
+        }
+    }
+
+    /**
+     * In passthrough mode water services without interceptable methods are left visible and are not proxied.
+     * The verdict is a service property set at registration time, hooks never fetch the service to decide,
+     * since that would activate lazy components.
+     */
+    private boolean isPassthroughService(ServiceReference<?> sr) {
+        return passthroughEnabled && Boolean.parseBoolean(String.valueOf(sr.getProperty(OSGiUtil.WATER_OSGI_PROPS_PASSTHROUGH)));
+    }
+
+    /**
+     * Proxy registered for an original service.
+     */
+    private static class ProxiedService {
+        private final BundleContext bundleContext;
+        private final ServiceReference<Service> originalReference;
+        private final OsgiServiceInterceptor<Service> interceptor;
+        private volatile ServiceRegistration<Service> registration;
+
+        private ProxiedService(BundleContext bundleContext, ServiceReference<Service> originalReference, OsgiServiceInterceptor<Service> interceptor) {
+            this.bundleContext = bundleContext;
+            this.originalReference = originalReference;
+            this.interceptor = interceptor;
+        }
+
+        private void release() {
+            try {
+                if (registration != null)
+                    registration.unregister();
+            } catch (IllegalStateException e) {
+                log.debug("Proxy already unregistered: {}", e.getMessage());
+            }
+            try {
+                bundleContext.ungetService(originalReference);
+            } catch (IllegalStateException e) {
+                log.debug("Bundle context no more valid, service already released by the framework: {}", e.getMessage());
+            }
         }
-        return OSGiUtil.toDictionary(properties);
     }
 }
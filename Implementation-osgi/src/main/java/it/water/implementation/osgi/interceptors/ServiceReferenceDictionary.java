@@ -0,0 +1,108 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.implementation.osgi.interceptors;
+
+import it.water.implementation.osgi.util.OSGiUtil;
+import org.osgi.framework.ServiceReference;
+
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.NoSuchElementException;
+
+
+/**
+ * @Author Aristide Cittadino
+ * Read only view of the properties of an original service, used to register its proxy.
+ * Values are read from the service reference when requested and the proxy flag is always present.
+ * The framework copies registration properties, so the view is never retained after registration.
+ */
+class ServiceReferenceDictionary extends Dictionary<String, Object> {
+    private final ServiceReference<?> serviceReference;
+    private final String[] keys;
+    private final boolean proxyFlagAdvertised;
+
+    ServiceReferenceDictionary(ServiceReference<?> serviceReference) {
+        this.serviceReference = serviceReference;
+        this.keys = serviceReference.getPropertyKeys();
+        this.proxyFlagAdvertised = serviceReference.getProperty(OSGiUtil.WATER_OSGI_PROPS_PROXY) != null;
+    }
+
+    @Override
+    public int size() {
+        return proxyFlagAdvertised ? keys.length : keys.length + 1;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return false;
+    }
+
+    @Override
+    public Enumeration<String> keys() {
+        return new KeysEnumeration();
+    }
+
+    @Override
+    public Enumeration<Object> elements() {
+        Enumeration<String> keysEnumeration = keys();
+        return new Enumeration<>() {
+            @Override
+            public boolean hasMoreElements() {
+                return keysEnumeration.hasMoreElements();
+            }
+
+            @Override
+            public Object nextElement() {
+                return get(keysEnumeration.nextElement());
+            }
+        };
+    }
+
+    @Override
+    public Object get(Object key) {
+        if (OSGiUtil.WATER_OSGI_PROPS_PROXY.equals(key))
+            return Boolean.TRUE;
+        return (key instanceof String name) ? serviceReference.getProperty(name) : null;
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        throw new UnsupportedOperationException("Service reference properties are read only");
+    }
+
+    @Override
+    public Object remove(Object key) {
+        throw new UnsupportedOperationException("Service reference properties are read only");
+    }
+
+    private class KeysEnumeration implements Enumeration<String> {
+        private int index;
+
+        @Override
+        public boolean hasMoreElements() {
+            return index < size();
+        }
+
+        @Override
+        public String nextElement() {
+            if (!hasMoreElements())
+                throw new NoSuchElementException();
+            int current = index++;
+            return (current < keys.length) ? keys[current] : OSGiUtil.WATER_OSGI_PROPS_PROXY;
+        }
+    }
+}
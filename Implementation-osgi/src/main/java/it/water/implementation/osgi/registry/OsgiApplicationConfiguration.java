@@ -19,65 +19,125 @@ package it.water.implementation.osgi.registry;
 
 import it.water.core.api.registry.ApplicationConfiguration;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
 import org.osgi.framework.FrameworkUtil;
 import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
 import org.osgi.service.cm.Configuration;
 import org.osgi.service.cm.ConfigurationAdmin;
+import org.osgi.service.cm.ManagedService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.*;
-import java.util.function.Function;
-import java.util.stream.Collectors;
-
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Properties;
 
+/**
+ * @Author Aristide Cittadino
+ * Application configuration backed by the it.water.application pid.
+ * The configuration is kept as a versioned snapshot, replaced as a whole by a ManagedService when the pid is updated,
+ * so readers never lock and never copy.
+ * The ManagedService is registered by start and unregistered by stop, or by the framework when the Water distribution
+ * bundle stops.
+ */
 public class OsgiApplicationConfiguration implements ApplicationConfiguration {
     private static Logger log = LoggerFactory.getLogger(OsgiApplicationConfiguration.class);
-    Properties props;
-    Properties copy;
+    private static final String APPLICATION_CFG_PID = "it.water.application";
+
+    private volatile ConfigurationSnapshot snapshot = new ConfigurationSnapshot(0, new Properties());
+    private ServiceRegistration<ManagedService> managedServiceRegistration;
+
+    /**
+     * Loads the configuration and keeps it updated, invoking it more than once has no effect.
+     */
+    public synchronized void start() {
+        if (managedServiceRegistration != null)
+            return;
+        loadProperties();
+        BundleContext context = FrameworkUtil.getBundle(OsgiApplicationConfiguration.class).getBundleContext();
+        Dictionary<String, Object> serviceProperties = new Hashtable<>();
+        serviceProperties.put(Constants.SERVICE_PID, APPLICATION_CFG_PID);
+        managedServiceRegistration = context.registerService(ManagedService.class, this::updateProperties, serviceProperties);
+    }
 
-    public void start() {
-        this.loadProperties();
+    /**
+     * Stops following configuration updates, the last configuration is still returned.
+     */
+    public synchronized void stop() {
+        if (managedServiceRegistration == null)
+            return;
+        try {
+            managedServiceRegistration.unregister();
+        } catch (IllegalStateException e) {
+            log.debug("Application configuration already released: {}", e.getMessage());
+        }
+        managedServiceRegistration = null;
     }
 
+    /**
+     * @return the current configuration, built once per version and shared by callers, it must not be modified
+     */
     @Override
     public Properties getConfiguration() {
-        return copy;
+        return snapshot.properties;
     }
 
-    public void loadProperties() {
-        if (props == null) {
-            BundleContext context = FrameworkUtil.getBundle(this.getClass()).getBundleContext();
-            ServiceReference<?> configurationAdminReference = context
-                    .getServiceReference(ConfigurationAdmin.class.getName());
+    /**
+     * @return version of the current configuration, incremented on each update
+     */
+    public long getConfigurationVersion() {
+        return snapshot.version;
+    }
 
-            if (configurationAdminReference != null) {
-                ConfigurationAdmin confAdmin = (ConfigurationAdmin) context
-                        .getService(configurationAdminReference);
-                try {
-                    Configuration configuration = confAdmin
-                            .getConfiguration("it.water.application");
-                    if (configuration != null && configuration.getProperties() != null) {
-                        Dictionary<String, Object> dict = configuration.getProperties();
-                        List<String> keys = Collections.list(dict.keys());
-                        Map<String, Object> dictCopy = keys.stream()
-                                .collect(Collectors.toMap(Function.identity(), dict::get));
-                        props = new Properties();
-                        props.putAll(dictCopy);
-                        log.debug("Loaded properties For Water: {}", props);
-                    }
-                } catch (IOException e) {
-                    log.error(
-                            "Impossible to find it.water.application.cfg, please create it!", e);
+    /**
+     * Reads again the configuration from ConfigurationAdmin.
+     */
+    public void loadProperties() {
+        BundleContext context = FrameworkUtil.getBundle(OsgiApplicationConfiguration.class).getBundleContext();
+        ServiceReference<ConfigurationAdmin> configurationAdminReference = context.getServiceReference(ConfigurationAdmin.class);
+        if (configurationAdminReference != null) {
+            ConfigurationAdmin confAdmin = context.getService(configurationAdminReference);
+            try {
+                Configuration configuration = confAdmin.getConfiguration(APPLICATION_CFG_PID);
+                if (configuration != null && configuration.getProperties() != null) {
+                    updateProperties(configuration.getProperties());
                 }
-            } else {
-                log.error(
-                        "Impossible to find it.water.application.cfg, please create it!");
+            } catch (IOException e) {
+                log.error("Impossible to find it.water.application.cfg, please create it!", e);
+            } finally {
+                context.ungetService(configurationAdminReference);
+            }
+        } else {
+            log.error("Impossible to find it.water.application.cfg, please create it!");
+        }
+    }
+
+    /**
+     * Replaces the current snapshot, invoked by ConfigurationAdmin when the pid is updated or deleted (null properties).
+     */
+    private synchronized void updateProperties(Dictionary<String, ?> properties) {
+        Properties values = new Properties();
+        if (properties != null) {
+            Enumeration<String> keys = properties.keys();
+            while (keys.hasMoreElements()) {
+                String key = keys.nextElement();
+                values.put(key, properties.get(key));
             }
+        }
+        snapshot = new ConfigurationSnapshot(snapshot.version + 1, values);
+        log.debug("Loaded properties For Water, version {}: {}", snapshot.version, values);
+    }
+
+    private static class ConfigurationSnapshot {
+        private final long version;
+        private final Properties properties;
 
+        private ConfigurationSnapshot(long version, Properties properties) {
+            this.version = version;
+            this.properties = properties;
         }
-        copy = new Properties();
-        copy.putAll(props);
     }
 }
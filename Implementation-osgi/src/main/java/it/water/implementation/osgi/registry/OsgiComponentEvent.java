@@ -0,0 +1,84 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.implementation.osgi.registry;
+
+import it.water.implementation.core.registry.ComponentEvent;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+
+import java.util.Properties;
+import java.util.function.Function;
+
+
+/**
+ * @Author Aristide Cittadino
+ * Change of a component published by OsgiComponentRegistry.
+ * Events are keyed by service id: ADDED and MODIFIED can be handled as upserts, REMOVED as deletion.
+ * MODIFIED is published also when a service starts matching the subscription filter after a properties change.
+ */
+public class OsgiComponentEvent<T> extends ComponentEvent<T> {
+    private final ServiceReference<T> serviceReference;
+    private final Function<ServiceReference<T>, T> serviceResolver;
+
+    OsgiComponentEvent(Type type, ServiceReference<T> serviceReference, Function<ServiceReference<T>, T> serviceResolver) {
+        super(type);
+        this.serviceReference = serviceReference;
+        this.serviceResolver = serviceResolver;
+    }
+
+    @Override
+    protected OsgiComponentEvent<T> withType(Type newType) {
+        return new OsgiComponentEvent<>(newType, serviceReference, serviceResolver);
+    }
+
+    @Override
+    public Object getKey() {
+        return getServiceId();
+    }
+
+    public ServiceReference<T> getServiceReference() {
+        return serviceReference;
+    }
+
+    public Long getServiceId() {
+        return (Long) serviceReference.getProperty(Constants.SERVICE_ID);
+    }
+
+    /**
+     * @return current service properties
+     */
+    @Override
+    public Properties getProperties() {
+        Properties properties = new Properties();
+        for (String key : serviceReference.getPropertyKeys()) {
+            Object value = serviceReference.getProperty(key);
+            if (value != null)
+                properties.put(key, value);
+        }
+        return properties;
+    }
+
+    /**
+     * @return the component, fetched from the framework only when requested, null if the component has been removed
+     */
+    @Override
+    public T getComponent() {
+        if (getType() == Type.REMOVED || serviceReference.getBundle() == null)
+            return null;
+        return serviceResolver.apply(serviceReference);
+    }
+}
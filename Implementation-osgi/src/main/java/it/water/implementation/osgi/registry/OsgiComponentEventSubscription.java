@@ -0,0 +1,123 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.implementation.osgi.registry;
+
+import it.water.core.registry.model.exception.NoComponentRegistryFoundException;
+import it.water.implementation.core.registry.ComponentEventSubscription;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.function.Function;
+
+
+/**
+ * @Author Aristide Cittadino
+ * Subscription to the component events of a type, fed by a filtered service listener.
+ * Events are conflated by service id.
+ */
+class OsgiComponentEventSubscription<T> extends ComponentEventSubscription<T, OsgiComponentEvent<T>> implements ServiceListener {
+    private static final Logger log = LoggerFactory.getLogger(OsgiComponentEventSubscription.class);
+
+    private final BundleContext bundleContext;
+    private final Function<ServiceReference<T>, T> serviceResolver;
+    //services removed while the initial snapshot is taken, guarded by lock
+    private Set<Long> removedDuringSnapshot = new HashSet<>();
+
+    OsgiComponentEventSubscription(Flow.Subscriber<? super OsgiComponentEvent<T>> subscriber, BundleContext bundleContext, Function<ServiceReference<T>, T> serviceResolver, Executor executor, int bufferSize) {
+        super(subscriber, executor, bufferSize);
+        this.bundleContext = bundleContext;
+        this.serviceResolver = serviceResolver;
+    }
+
+    /**
+     * Starts listening for service events, then publishes the already registered services as ADDED.
+     *
+     * @param componentClass component class
+     * @param filter         osgi filter, can be null
+     */
+    void open(Class<T> componentClass, String filter) {
+        String listenerFilter = "(" + Constants.OBJECTCLASS + "=" + componentClass.getName() + ")";
+        if (filter != null)
+            listenerFilter = "(&" + listenerFilter + filter + ")";
+        if (bundleContext == null) {
+            fail(new NoComponentRegistryFoundException("No bundle context available for :" + componentClass.getName()));
+            drain();
+            return;
+        }
+        try {
+            bundleContext.addServiceListener(this, listenerFilter);
+            //listener is added before the snapshot, so registrations in the meanwhile are not lost
+            Iterable<ServiceReference<T>> references = bundleContext.getServiceReferences(componentClass, filter);
+            synchronized (lock) {
+                for (ServiceReference<T> reference : references) {
+                    Long serviceId = (Long) reference.getProperty(Constants.SERVICE_ID);
+                    if (!removedDuringSnapshot.contains(serviceId))
+                        enqueue(new OsgiComponentEvent<>(OsgiComponentEvent.Type.ADDED, reference, serviceResolver));
+                }
+                removedDuringSnapshot = null;
+            }
+        } catch (InvalidSyntaxException | IllegalStateException e) {
+            fail(e);
+        }
+        drain();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void serviceChanged(ServiceEvent event) {
+        ServiceReference<T> reference = (ServiceReference<T>) event.getServiceReference();
+        switch (event.getType()) {
+            case ServiceEvent.REGISTERED -> offer(OsgiComponentEvent.Type.ADDED, reference);
+            case ServiceEvent.MODIFIED -> offer(OsgiComponentEvent.Type.MODIFIED, reference);
+            //the service does not match the filter anymore
+            case ServiceEvent.MODIFIED_ENDMATCH, ServiceEvent.UNREGISTERING -> offer(OsgiComponentEvent.Type.REMOVED, reference);
+            default -> log.debug("Unrecognized event type {}", event.getType());
+        }
+    }
+
+    @Override
+    protected void onCancel() {
+        try {
+            if (bundleContext != null)
+                bundleContext.removeServiceListener(this);
+        } catch (IllegalStateException e) {
+            log.debug("Bundle context no more valid while cancelling subscription: {}", e.getMessage());
+        }
+    }
+
+    private void offer(OsgiComponentEvent.Type type, ServiceReference<T> reference) {
+        if (isCancelled())
+            return;
+        OsgiComponentEvent<T> event = new OsgiComponentEvent<>(type, reference, serviceResolver);
+        synchronized (lock) {
+            if (removedDuringSnapshot != null && type == OsgiComponentEvent.Type.REMOVED)
+                removedDuringSnapshot.add(event.getServiceId());
+            enqueue(event);
+        }
+        drain();
+    }
+}
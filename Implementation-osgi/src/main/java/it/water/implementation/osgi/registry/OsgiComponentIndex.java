@@ -0,0 +1,133 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.implementation.osgi.registry;
+
+import it.water.implementation.osgi.util.filter.OSGiComponentFilterImplementation;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * @Author Aristide Cittadino
+ * Index used by OsgiComponentRegistry when indexed lookup is enabled.
+ * For each (type, requesting bundle, filter) it keeps the service references already ordered by priority,
+ * so a warm lookup does not query the framework again.
+ * Filtered snapshots are obtained matching the precompiled filter against the cached references of the type.
+ * Snapshots of a type are dropped as soon as a service exposing that type is registered, modified or unregistered.
+ */
+class OsgiComponentIndex implements ServiceListener {
+    //avoiding unbounded growth when callers build filters with per-request values
+    private static final int MAX_SNAPSHOTS_PER_TYPE = 128;
+    private static final String NO_FILTER = "";
+
+    private final BundleContext bundleContext;
+    private final Map<String, Map<String, ServiceReference<?>[]>> snapshots = new ConcurrentHashMap<>();
+    //incremented on every service event, used to discard snapshots computed while services were changing
+    private final AtomicLong generation = new AtomicLong();
+    //types changed by the batch registration running on the current thread, looked up on the framework until the batch ends
+    private final ThreadLocal<Set<String>> batchChangedTypes = new ThreadLocal<>();
+
+    OsgiComponentIndex(BundleContext bundleContext) {
+        this.bundleContext = bundleContext;
+    }
+
+    BundleContext getBundleContext() {
+        return bundleContext;
+    }
+
+    /**
+     * @param context       context of the bundle which is performing the lookup
+     * @param componentClass searched type
+     * @param filter        osgi filter, can be null
+     * @return service references ordered by priority, highest first
+     * @throws InvalidSyntaxException
+     */
+    @SuppressWarnings("unchecked")
+    <T> ServiceReference<T>[] getServiceReferences(BundleContext context, Class<T> componentClass, String filter) throws InvalidSyntaxException {
+        //the batching thread reads changed types from the framework, instead of rebuilding snapshots after each registration
+        Set<String> changedTypes = batchChangedTypes.get();
+        if (changedTypes != null && changedTypes.contains(componentClass.getName()))
+            return OsgiComponentRegistry.sortByPriority(context.getServiceReferences(componentClass, filter));
+        long currentGeneration = generation.get();
+        Map<String, ServiceReference<?>[]> typeSnapshots = snapshots.computeIfAbsent(componentClass.getName(), name -> new ConcurrentHashMap<>());
+        String snapshotKey = context.getBundle().getBundleId() + ":" + (filter != null ? filter : NO_FILTER);
+        ServiceReference<?>[] references = typeSnapshots.get(snapshotKey);
+        if (references == null) {
+            //filtered snapshots are computed from the unfiltered one with the precompiled filter
+            references = (filter == null) ? OsgiComponentRegistry.sortByPriority(context.getServiceReferences(componentClass, null)) : filterReferences(getServiceReferences(context, componentClass, null), filter);
+            //caching only if nothing changed in the meanwhile
+            if (currentGeneration == generation.get() && typeSnapshots.size() < MAX_SNAPSHOTS_PER_TYPE)
+                typeSnapshots.put(snapshotKey, references);
+        }
+        return (ServiceReference<T>[]) references;
+    }
+
+    private ServiceReference<?>[] filterReferences(ServiceReference<?>[] references, String filterExpression) throws InvalidSyntaxException {
+        Filter filter = OSGiComponentFilterImplementation.compile(filterExpression);
+        //order is preserved so filtered references are still ordered by priority
+        return Arrays.stream(references).filter(filter::match).toArray(ServiceReference<?>[]::new);
+    }
+
+    @Override
+    public void serviceChanged(ServiceEvent event) {
+        generation.incrementAndGet();
+        String[] objectClasses = (String[]) event.getServiceReference().getProperty(Constants.OBJECTCLASS);
+        if (objectClasses != null) {
+            //registrations are notified synchronously on the registering thread
+            Set<String> changedTypes = batchChangedTypes.get();
+            if (changedTypes != null)
+                changedTypes.addAll(Arrays.asList(objectClasses));
+            //dropped at once also during batches, so other threads never read snapshots older than the event.
+            //Removing the type drops every (bundle, filter) snapshot computed for it
+            for (String objectClass : objectClasses) {
+                snapshots.remove(objectClass);
+            }
+        }
+    }
+
+    /**
+     * Starts collecting the types changed by the current thread, which reads them from the framework until the batch ends.
+     */
+    void beginBatch() {
+        if (batchChangedTypes.get() == null)
+            batchChangedTypes.set(new HashSet<>());
+    }
+
+    /**
+     * Ends the batch, the current thread goes back to snapshots.
+     */
+    void endBatch() {
+        batchChangedTypes.remove();
+    }
+
+    void clear() {
+        generation.incrementAndGet();
+        snapshots.clear();
+    }
+}
@@ -31,6 +31,8 @@ public class OsgiComponentRegistration<T> implements ComponentRegistration<T, Se
     private ServiceReference<T> serviceReference;
     private Dictionary<String, Object> properties;
     private Class<? extends T> registrationClass;
+    //resolved once, the use count is released by the framework when the service is unregistered
+    private volatile T component;
 
     public OsgiComponentRegistration(Class<? extends T> registrationClass, ServiceRegistration<T> registration) {
         this.registrationClass = registrationClass;
@@ -39,10 +41,33 @@ public class OsgiComponentRegistration<T> implements ComponentRegistration<T, Se
         this.registration = registration;
     }
 
+    /**
+     * @return the component, null once it has been unregistered
+     */
     @Override
     public T getComponent() {
-        BundleContext ctx = serviceReference.getBundle().getBundleContext();
-        return ctx.getService(serviceReference);
+        //bundle is null once the service has been unregistered
+        if (serviceReference.getBundle() == null) {
+            this.component = null;
+            return null;
+        }
+        T resolved = this.component;
+        if (resolved == null) {
+            BundleContext ctx = serviceReference.getBundle().getBundleContext();
+            //prototype components are not cached, each call returns a new instance
+            if (OsgiComponentRegistry.isPrototypeScoped(serviceReference))
+                return OsgiComponentRegistry.getPrototypeService(ctx, serviceReference);
+            resolved = ctx.getService(serviceReference);
+            this.component = resolved;
+        }
+        return resolved;
+    }
+
+    /**
+     * Drops the cached component, invoked when the registration is unregistered through the registry.
+     */
+    void clearComponent() {
+        this.component = null;
     }
 
     @Override
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.implementation.osgi.registry;
+
+import it.water.core.api.registry.ComponentConfiguration;
+
+
+/**
+ * @param <T>
+ * @Author Aristide Cittadino
+ * Single component to be registered through OsgiComponentRegistry batch registration.
+ */
+public class OsgiComponentRegistrationRequest<T> {
+    private final Class<? extends T> componentClass;
+    private final T component;
+    private final ComponentConfiguration configuration;
+
+    public OsgiComponentRegistrationRequest(Class<? extends T> componentClass, T component, ComponentConfiguration configuration) {
+        this.componentClass = componentClass;
+        this.component = component;
+        this.configuration = configuration;
+    }
+
+    public Class<? extends T> getComponentClass() {
+        return componentClass;
+    }
+
+    public T getComponent() {
+        return component;
+    }
+
+    public ComponentConfiguration getConfiguration() {
+        return configuration;
+    }
+}
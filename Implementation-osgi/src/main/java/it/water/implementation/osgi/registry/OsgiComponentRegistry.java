@@ -17,7 +17,7 @@
 
 package it.water.implementation.osgi.registry;
 
-import java.lang.reflect.Proxy;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -26,12 +26,22 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
 import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceObjects;
 import org.osgi.framework.ServiceReference;
 import org.osgi.framework.ServiceRegistration;
 import org.slf4j.Logger;
@@ -60,31 +70,151 @@ import it.water.implementation.osgi.util.filter.OSGiComponentFilterBuilder;
 public class OsgiComponentRegistry extends AbstractComponentRegistry {
     private static final Logger log = LoggerFactory.getLogger(OsgiComponentRegistry.class);
     private static final String PRIORITY = "it.water.component.priority";
+    //entity type managed by entity system apis and repositories, advertised as service property
+    public static final String ENTITY_TYPE = "it.water.component.entityType";
+    //framework property which enables indexed lookups (default false)
+    public static final String INDEXED_LOOKUP_PROPERTY = "it.water.osgi.registry.indexedLookup";
     public static final OSGiComponentFilterBuilder componentFilterBuilder = new OSGiComponentFilterBuilder();
-    private static OsgiComponentRegistry instance;
-    private Map<Class<?>, ServiceRegistration<?>> registrations = new HashMap<>();
+    private final OsgiRegistrationTable registrations = new OsgiRegistrationTable();
+    private volatile OsgiComponentIndex componentIndex;
+    private volatile OsgiServiceHandles serviceHandles;
+    //entity class name -> service reference of the related system api / repository
+    private final Map<String, ServiceReference<?>> entitySystemApis = new ConcurrentHashMap<>();
+    private final Map<String, ServiceReference<?>> entityRepositories = new ConcurrentHashMap<>();
 
     private OsgiComponentRegistry() {
     }
 
     public static OsgiComponentRegistry getInstance() {
-        if (instance == null) {
-            instance = new OsgiComponentRegistry();
-        }
-        return instance;
+        return InstanceHolder.INSTANCE;
+    }
+
+    //lazy and thread safe initialization, bundles can be started in parallel
+    private static class InstanceHolder {
+        private static final OsgiComponentRegistry INSTANCE = new OsgiComponentRegistry();
     }
 
+    /**
+     * Returns the component with the highest priority.
+     * Only the selected service is fetched from the framework, other candidates are touched only if it cannot be resolved.
+     */
     @Override
     public <T> T findComponent(Class<T> componentClass, ComponentFilter filter) {
-        List<T> components = findComponents(componentClass, filter);
-        if (!components.isEmpty()) {
-            if (components.size() > 1)
-                log.debug("Multiple components found for type: {}, returning the one with highest priority ", componentClass.getName());
-            return components.get(0);
+        return findComponent(componentClass, filter, this.componentIndex);
+    }
+
+    /**
+     * @param index index used for the lookup, null to query the framework
+     */
+    private <T> T findComponent(Class<T> componentClass, ComponentFilter filter, OsgiComponentIndex index) {
+        try {
+            BundleContext bundleContext = getBundleContext(componentClass);
+            //if context is null just need to reload next time
+            if (bundleContext != null) {
+                String filterStr = (filter != null) ? filter.getFilter() : null;
+                ServiceReference<T> serviceReference = findHighestPriorityReference(bundleContext, componentClass, filterStr, index);
+                T component = (serviceReference != null) ? getService(bundleContext, serviceReference) : null;
+                //the selected service may be unregistering, trying the next ones by priority
+                if (component == null && serviceReference != null)
+                    component = findNextRankedComponent(bundleContext, componentClass, filterStr, serviceReference, index);
+                if (component != null)
+                    return component;
+            }
+        } catch (Exception e) {
+            log.error("Unknown error while trying to find component {}, with message {},please check exported and imported packages!", componentClass.getName(), e.getMessage(), e);
         }
         throw new NoComponentRegistryFoundException("No components found for :" + componentClass.getName() + " with filter: " + filter);
     }
 
+    /**
+     * Returns a future completed with the component with the highest priority as soon as it is available.
+     * If the component is not registered yet, a service listener completes the future on registration.
+     * Retries triggered by the listener query the framework, since the index may not have seen the event yet,
+     * and run on the common pool, so dependent stages never run inside the framework event dispatch.
+     *
+     * @param componentClass component class
+     * @param filter         component filter, can be null
+     * @param timeout        max waiting time, null to wait indefinitely
+     * @return future completed with the component, or exceptionally with a TimeoutException
+     */
+    public <T> CompletableFuture<T> findComponentAsync(Class<T> componentClass, ComponentFilter filter, Duration timeout) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        BundleContext bundleContext = getBundleContext(componentClass);
+        if (bundleContext == null) {
+            future.completeExceptionally(new NoComponentRegistryFoundException("No bundle context available for :" + componentClass.getName()));
+            return future;
+        }
+        String listenerFilter = "(" + Constants.OBJECTCLASS + "=" + componentClass.getName() + ")";
+        if (filter != null)
+            listenerFilter = "(&" + listenerFilter + filter.getFilter() + ")";
+        ServiceListener listener = event -> {
+            if ((event.getType() == ServiceEvent.REGISTERED || event.getType() == ServiceEvent.MODIFIED) && !future.isDone())
+                ForkJoinPool.commonPool().execute(() -> tryCompleteLookup(future, componentClass, filter, null));
+        };
+        try {
+            //listener is added before the first lookup, so registrations in the meanwhile are not lost
+            bundleContext.addServiceListener(listener, listenerFilter);
+        } catch (InvalidSyntaxException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+        future.whenComplete((component, error) -> {
+            try {
+                bundleContext.removeServiceListener(listener);
+            } catch (IllegalStateException e) {
+                log.debug("Bundle context no more valid while removing lookup listener: {}", e.getMessage());
+            }
+        });
+        if (timeout != null)
+            future.orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        tryCompleteLookup(future, componentClass, filter, this.componentIndex);
+        return future;
+    }
+
+    private <T> void tryCompleteLookup(CompletableFuture<T> future, Class<T> componentClass, ComponentFilter filter, OsgiComponentIndex index) {
+        if (future.isDone())
+            return;
+        try {
+            future.complete(findComponent(componentClass, filter, index));
+        } catch (NoComponentRegistryFoundException e) {
+            log.debug("Component {} not available yet, waiting for registration", componentClass.getName());
+        }
+    }
+
+    /**
+     * Returns a publisher of the changes of the components of the given type, using the default buffer size.
+     * Each subscriber receives the already registered components as ADDED, then every following change.
+     *
+     * @param componentClass component class
+     * @param filter         component filter, can be null
+     * @return publisher of component events
+     */
+    public <T> Flow.Publisher<OsgiComponentEvent<T>> getComponentEventPublisher(Class<T> componentClass, ComponentFilter filter) {
+        return getComponentEventPublisher(componentClass, filter, Flow.defaultBufferSize());
+    }
+
+    /**
+     * @param componentClass component class
+     * @param filter         component filter, can be null
+     * @param bufferSize     max number of distinct components pending for each subscriber
+     * @return publisher of component events
+     */
+    public <T> Flow.Publisher<OsgiComponentEvent<T>> getComponentEventPublisher(Class<T> componentClass, ComponentFilter filter, int bufferSize) {
+        if (bufferSize <= 0)
+            throw new IllegalArgumentException("Buffer size must be positive");
+        String filterStr = (filter != null) ? filter.getFilter() : null;
+        return subscriber -> {
+            BundleContext bundleContext = getBundleContext(componentClass);
+            OsgiComponentEventSubscription<T> subscription = new OsgiComponentEventSubscription<>(subscriber, bundleContext, ref -> getService(bundleContext, ref), ForkJoinPool.commonPool(), bufferSize);
+            subscriber.onSubscribe(subscription);
+            subscription.open(componentClass, filterStr);
+        };
+    }
+
+    /**
+     * Returns components ordered by priority.
+     * The returned list is lazy: each service is fetched from the framework only when accessed.
+     */
     @Override
     public <T> List<T> findComponents(Class<T> componentClass, ComponentFilter filter) {
         try {
@@ -92,20 +222,9 @@ public class OsgiComponentRegistry extends AbstractComponentRegistry {
             //if context is null just need to reload next time
             if (bundleContext != null) {
                 String filterStr = (filter != null) ? filter.getFilter() : null;
-                Collection<ServiceReference<T>> serviceReferences = bundleContext.getServiceReferences(componentClass, filterStr);
-                List<ServiceReference<T>> orderedServiceReferences = new ArrayList<>(serviceReferences);
-                Collections.sort(orderedServiceReferences, (sr1, sr2) -> {
-                    //we don't know if standard components have been registered
-                    //so we put the lowest priority
-                    int prioritySr1 = (sr1.getProperty(PRIORITY) != null) ? (Integer) sr1.getProperty(PRIORITY) : -1;
-                    int prioritySr2 = (sr2.getProperty(PRIORITY) != null) ? (Integer) sr2.getProperty(PRIORITY) : -1;
-                    if (prioritySr1 > prioritySr2)
-                        return -1;
-                    else if (prioritySr1 == prioritySr2)
-                        return 0;
-                    return 1;
-                });
-                return orderedServiceReferences.stream().map(bundleContext::getService).toList();
+                OsgiComponentIndex index = this.componentIndex;
+                ServiceReference<T>[] orderedServiceReferences = (index != null) ? index.getServiceReferences(bundleContext, componentClass, filterStr) : sortByPriority(bundleContext.getServiceReferences(componentClass, filterStr));
+                return new OsgiLazyComponentList<>(orderedServiceReferences, serviceReference -> getService(bundleContext, serviceReference));
             }
         } catch (Exception e) {
             log.error("Unknown error while trying to find component {}, with message {},please check exported and imported packages!", componentClass.getName(), e.getMessage(), e);
@@ -113,9 +232,89 @@ public class OsgiComponentRegistry extends AbstractComponentRegistry {
         return Collections.emptyList();
     }
 
+    private <T> ServiceReference<T> findHighestPriorityReference(BundleContext bundleContext, Class<T> componentClass, String filter, OsgiComponentIndex index) throws InvalidSyntaxException {
+        if (index != null) {
+            ServiceReference<T>[] orderedServiceReferences = index.getServiceReferences(bundleContext, componentClass, filter);
+            logMultipleComponents(componentClass, orderedServiceReferences.length);
+            return (orderedServiceReferences.length > 0) ? orderedServiceReferences[0] : null;
+        }
+        //single pass, on same priority the first reference returned by the framework wins
+        Collection<ServiceReference<T>> serviceReferences = bundleContext.getServiceReferences(componentClass, filter);
+        ServiceReference<T> highest = null;
+        int highestPriority = 0;
+        for (ServiceReference<T> serviceReference : serviceReferences) {
+            int priority = getPriority(serviceReference);
+            if (highest == null || priority > highestPriority) {
+                highest = serviceReference;
+                highestPriority = priority;
+            }
+        }
+        logMultipleComponents(componentClass, serviceReferences.size());
+        return highest;
+    }
+
+    private <T> T findNextRankedComponent(BundleContext bundleContext, Class<T> componentClass, String filter, ServiceReference<T> unavailableReference, OsgiComponentIndex index) throws InvalidSyntaxException {
+        ServiceReference<T>[] orderedServiceReferences = (index != null) ? index.getServiceReferences(bundleContext, componentClass, filter) : sortByPriority(bundleContext.getServiceReferences(componentClass, filter));
+        for (ServiceReference<T> serviceReference : orderedServiceReferences) {
+            if (serviceReference.equals(unavailableReference))
+                continue;
+            T component = getService(bundleContext, serviceReference);
+            if (component != null)
+                return component;
+        }
+        return null;
+    }
+
+    private void logMultipleComponents(Class<?> componentClass, int found) {
+        if (found > 1)
+            log.debug("Multiple components found for type: {}, returning the one with highest priority ", componentClass.getName());
+    }
+
     @SuppressWarnings("unchecked")
     @Override
     public <T, K> ComponentRegistration<T, K> registerComponent(Class<? extends T> componentClass, T component, ComponentConfiguration configuration) {
+        //adding inferred classes to the registration so they can be read at runtime from osgi properties.
+        String[] componentClassesNames = calculateComponentClasses(componentClass, component);
+        boolean waterService = OSGiUtil.isWaterService(componentClassesNames, false, component);
+        return (ComponentRegistration<T, K>) doRegisterComponent(componentClass, component, configuration, componentClassesNames, waterService);
+    }
+
+    /**
+     * Registers many components at once.
+     * Exposed interfaces and proxy decisions are computed once per component class, and lookups made by the
+     * registering thread during the batch go to the framework instead of rebuilding index snapshots after each registration.
+     *
+     * @param requests components to register
+     * @return registrations, in the same order of the requests
+     */
+    public List<ComponentRegistration<?, ?>> registerComponents(Collection<OsgiComponentRegistrationRequest<?>> requests) {
+        List<ComponentRegistration<?, ?>> componentRegistrations = new ArrayList<>(requests.size());
+        Map<String, String[]> componentClassesCache = new HashMap<>();
+        Map<Class<?>, Boolean> waterServiceCache = new HashMap<>();
+        OsgiComponentIndex index = this.componentIndex;
+        if (index != null)
+            index.beginBatch();
+        try {
+            for (OsgiComponentRegistrationRequest<?> request : requests) {
+                componentRegistrations.add(registerComponent(request, componentClassesCache, waterServiceCache));
+            }
+        } finally {
+            if (index != null)
+                index.endBatch();
+        }
+        return componentRegistrations;
+    }
+
+    private <T> ComponentRegistration<T, ServiceRegistration<T>> registerComponent(OsgiComponentRegistrationRequest<T> request, Map<String, String[]> componentClassesCache, Map<Class<?>, Boolean> waterServiceCache) {
+        T component = request.getComponent();
+        Class<?> concreteClass = component.getClass();
+        String[] componentClassesNames = componentClassesCache.computeIfAbsent(request.getComponentClass().getName() + ":" + concreteClass.getName(), key -> calculateComponentClasses(request.getComponentClass(), component));
+        boolean waterService = waterServiceCache.computeIfAbsent(concreteClass, key -> OSGiUtil.isWaterService(componentClassesNames, false, component));
+        return doRegisterComponent(request.getComponentClass(), component, request.getConfiguration(), componentClassesNames, waterService);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> ComponentRegistration<T, ServiceRegistration<T>> doRegisterComponent(Class<? extends T> componentClass, T component, ComponentConfiguration configuration, String[] componentClassesNames, boolean waterService) {
         BundleContext context = getBundleContext(component.getClass());
         if (configuration == null) {
             configuration = ComponentConfigurationFactory.createNewComponentPropertyFactory().build();
@@ -123,27 +322,188 @@ public class OsgiComponentRegistry extends AbstractComponentRegistry {
         //in OSGi priority is added as a property
         //default priority is 1
         configuration.addProperty(PRIORITY, configuration.getPriority());
-        //adding inferred classes to the registration so they can be read at runtime from osgi properties.
-        String[] componentClassesNames = calculateComponentClasses(componentClass, component);
+        String entityType = getEntityType(component);
+        if (entityType != null)
+            configuration.addProperty(ENTITY_TYPE, entityType);
         ServiceRegistration<T> registration = null;
         //if the current instance implements directly or indirectly water service interface, registry will automatically register a proxy instance
-        if (OSGiUtil.isWaterService(componentClassesNames, false, component)) {
+        if (waterService && OSGiUtil.isPassthroughService(context.getBundle(), component)) {
+            //nothing to intercept, the service is registered as it is and flagged as proxy so hooks leave it visible
+            configuration.addProperty(OSGiUtil.WATER_OSGI_PROPS_PROXY, true);
+            configuration.addProperty(OSGiUtil.WATER_OSGI_PROPS_PASSTHROUGH, true);
+            registration = (ServiceRegistration<T>) context.registerService(componentClassesNames, component, configuration.getConfigurationAsDictionary());
+        } else if (waterService) {
             registration = (ServiceRegistration<T>) OSGiUtil.registerProxyService(context.getBundle(), componentClassesNames, configuration.getConfigurationAsDictionary(), component.getClass().getClassLoader(), (Service) component, this);
         } else {
             registration = (ServiceRegistration<T>) context.registerService(componentClassesNames, component, configuration.getConfigurationAsDictionary());
         }
         ComponentRegistration<T, ServiceRegistration<T>> componentRegistration = new OsgiComponentRegistration<>(componentClass, registration);
         //registrations are associated with specific classes of each component
-        registrations.put(component.getClass(), registration);
+        registrations.add(component.getClass(), component, registration);
+        if (entityType != null)
+            indexEntityComponent(component, entityType, registration.getReference());
+        return componentRegistration;
+    }
+
+    /**
+     * Registers a component which is created only when some bundle needs it for the first time.
+     * The registration is done through an OSGi service factory, which creates the component and its proxy on first use.
+     *
+     * @param componentClass    registration class
+     * @param concreteClass     concrete class of the component, used to compute exposed interfaces
+     * @param componentSupplier creates the component instance
+     * @param configuration     component configuration
+     * @param prototype         true to create a new component for each request, for components which are not thread safe
+     * @return the component registration
+     */
+    @SuppressWarnings("unchecked")
+    public <T, K> ComponentRegistration<T, K> registerLazyComponent(Class<? extends T> componentClass, Class<? extends T> concreteClass, Supplier<? extends T> componentSupplier, ComponentConfiguration configuration, boolean prototype) {
+        BundleContext context = getBundleContext(concreteClass);
+        if (configuration == null) {
+            configuration = ComponentConfigurationFactory.createNewComponentPropertyFactory().build();
+        }
+        configuration.addProperty(PRIORITY, configuration.getPriority());
+        String[] componentClassesNames = calculateComponentClasses(componentClass, concreteClass);
+        //the service factory returns the proxy itself, so the hooks must not proxy it again
+        if (Service.class.isAssignableFrom(concreteClass))
+            configuration.addProperty(OSGiUtil.WATER_OSGI_PROPS_PROXY, true);
+        OsgiLazyComponentFactory<T> componentFactory = prototype ? new OsgiPrototypeComponentFactory<>(context.getBundle(), componentClassesNames, concreteClass, componentSupplier, this) : new OsgiLazyComponentFactory<>(context.getBundle(), componentClassesNames, concreteClass, componentSupplier, this);
+        ServiceRegistration<T> registration = (ServiceRegistration<T>) context.registerService(componentClassesNames, componentFactory, configuration.getConfigurationAsDictionary());
+        registrations.add(concreteClass, null, registration);
+        ComponentRegistration<T, ServiceRegistration<T>> componentRegistration = new OsgiComponentRegistration<>(componentClass, registration);
         return (ComponentRegistration<T, K>) componentRegistration;
     }
 
+    /**
+     * Enables indexed lookups: service references are cached per type and filter, already ordered by priority,
+     * and kept fresh through a service listener registered with the given context.
+     *
+     * @param bundleContext context used to listen for service events
+     */
+    public synchronized void enableIndexedLookup(BundleContext bundleContext) {
+        if (this.componentIndex != null)
+            return;
+        OsgiComponentIndex index = new OsgiComponentIndex(bundleContext);
+        bundleContext.addServiceListener(index);
+        this.componentIndex = index;
+        log.debug("Indexed lookup enabled for component registry");
+    }
+
+    /**
+     * Disables indexed lookups, every lookup goes back to the framework.
+     */
+    public synchronized void disableIndexedLookup() {
+        OsgiComponentIndex index = this.componentIndex;
+        if (index == null)
+            return;
+        this.componentIndex = null;
+        try {
+            index.getBundleContext().removeServiceListener(index);
+        } catch (IllegalStateException e) {
+            log.debug("Bundle context no more valid while removing index listener: {}", e.getMessage());
+        }
+        index.clear();
+    }
+
+    public boolean isIndexedLookupEnabled() {
+        return this.componentIndex != null;
+    }
+
+    /**
+     * Releases all services held by the registry.
+     */
+    public synchronized void releaseServiceHandles() {
+        if (this.serviceHandles != null) {
+            this.serviceHandles.close();
+            this.serviceHandles = null;
+        }
+    }
+
+    /**
+     * Resolves the service through the registry handles so the framework use count is incremented only once
+     * for each requesting bundle.
+     * Prototype services are never shared, each lookup gets its own instance.
+     */
+    private <T> T getService(BundleContext bundleContext, ServiceReference<T> serviceReference) {
+        if (isPrototypeScoped(serviceReference))
+            return getPrototypeService(bundleContext, serviceReference);
+        OsgiServiceHandles handles = getServiceHandles();
+        if (handles != null)
+            return handles.getService(bundleContext, serviceReference);
+        return bundleContext.getService(serviceReference);
+    }
+
+    static boolean isPrototypeScoped(ServiceReference<?> serviceReference) {
+        return Constants.SCOPE_PROTOTYPE.equals(serviceReference.getProperty(Constants.SERVICE_SCOPE));
+    }
+
+    /**
+     * getService would return the same instance to every caller of the bundle, so prototype services are resolved
+     * through service objects.
+     * Lazy factories never dispose instances, so the framework bookkeeping is released at once
+     * and the instance lives as long as the caller uses it.
+     */
+    static <T> T getPrototypeService(BundleContext bundleContext, ServiceReference<T> serviceReference) {
+        ServiceObjects<T> serviceObjects = bundleContext.getServiceObjects(serviceReference);
+        if (serviceObjects == null)
+            return null;
+        T service = serviceObjects.getService();
+        if (service != null)
+            serviceObjects.ungetService(service);
+        return service;
+    }
+
+    private OsgiServiceHandles getServiceHandles() {
+        OsgiServiceHandles handles = this.serviceHandles;
+        if (handles == null) {
+            synchronized (this) {
+                if (this.serviceHandles == null) {
+                    BundleContext registryContext = getBundleContext(OsgiComponentRegistry.class);
+                    //context is null while the registry bundle is not active
+                    if (registryContext == null)
+                        return null;
+                    OsgiServiceHandles newHandles = new OsgiServiceHandles(registryContext);
+                    newHandles.open();
+                    this.serviceHandles = newHandles;
+                }
+                handles = this.serviceHandles;
+            }
+        }
+        return handles;
+    }
+
+    /**
+     * Orders service references by priority, highest first.
+     * Components registered without priority get the lowest one.
+     *
+     * @param serviceReferences references to order
+     * @return ordered references
+     */
+    @SuppressWarnings("unchecked")
+    static <T> ServiceReference<T>[] sortByPriority(Collection<ServiceReference<T>> serviceReferences) {
+        ServiceReference<T>[] orderedServiceReferences = (ServiceReference<T>[]) serviceReferences.toArray(new ServiceReference<?>[0]);
+        //stable sort, references with same priority keep the framework order
+        Arrays.sort(orderedServiceReferences, (sr1, sr2) -> Integer.compare(getPriority(sr2), getPriority(sr1)));
+        return orderedServiceReferences;
+    }
+
+    private static int getPriority(ServiceReference<?> serviceReference) {
+        //we don't know if standard components have been registered
+        //so we put the lowest priority
+        Object priority = serviceReference.getProperty(PRIORITY);
+        return (priority != null) ? (Integer) priority : -1;
+    }
+
     private <T> String[] calculateComponentClasses(Class<? extends T> componentClass, T component) {
+        return calculateComponentClasses(componentClass, component.getClass());
+    }
+
+    private <T> String[] calculateComponentClasses(Class<? extends T> componentClass, Class<?> concreteClass) {
         Set<String> componentClassesNames = new HashSet<>();
         componentClassesNames.add(componentClass.getName());
         //get recursive interfaces exposed by the whole hierarchy using the concrete class
         //in order to find other interfaces not directly exposed
-        getRecursiveInterfaces(component.getClass(), componentClassesNames);
+        getRecursiveInterfaces(concreteClass, componentClassesNames);
         return componentClassesNames.toArray(new String[componentClassesNames.size()]);
     }
 
@@ -156,6 +516,16 @@ public class OsgiComponentRegistry extends AbstractComponentRegistry {
     @SuppressWarnings("unchecked")
     @Override
     public boolean unregisterComponent(@SuppressWarnings("rawtypes") ComponentRegistration registration) {
+        //the service id identifies the registration without resolving the component, which may be lazy or prototype
+        if (registration instanceof OsgiComponentRegistration<?> osgiComponentRegistration) {
+            Long serviceId = (Long) osgiComponentRegistration.getServiceReference().getProperty(Constants.SERVICE_ID);
+            ServiceRegistration<?> serviceRegistration = registrations.remove(serviceId);
+            if (serviceRegistration != null) {
+                unregister(serviceRegistration, osgiComponentRegistration.getRegistrationClass());
+                osgiComponentRegistration.clearComponent();
+                return true;
+            }
+        }
         return unregisterComponent(registration.getRegistrationClass(), registration.getComponent());
     }
 
@@ -165,19 +535,39 @@ public class OsgiComponentRegistry extends AbstractComponentRegistry {
             return false;
         //retrieving registration for specific component class which is the implementation class
         Class<?> classToFind = component.getClass();
-        if (Proxy.isProxyClass(classToFind) && Proxy.getInvocationHandler(component) instanceof OsgiServiceInterceptor<?> osgiServiceInterceptor) {
+        Object originalComponent = component;
+        OsgiServiceInterceptor<?> osgiServiceInterceptor = OSGiUtil.getServiceInterceptor(component);
+        if (osgiServiceInterceptor != null) {
             classToFind = osgiServiceInterceptor.getOriginalConcreteClass();
+            originalComponent = osgiServiceInterceptor.getService();
         }
         //removing normal components
-        if (registrations.containsKey(classToFind)) {
-            registrations.get(classToFind).unregister();
-            registrations.remove(classToFind);
+        ServiceRegistration<?> registration = registrations.remove(classToFind, originalComponent);
+        if (registration != null) {
+            unregister(registration, classToFind);
             return true;
         }
         this.invokeLifecycleMethod(OnDeactivate.class, classToFind, component);
         return false;
     }
 
+    private void unregister(ServiceRegistration<?> registration, Class<?> registeredClass) {
+        try {
+            removeEntityComponent(registration.getReference());
+            registration.unregister();
+        } catch (IllegalStateException e) {
+            log.debug("Component {} already unregistered", registeredClass.getName());
+        }
+    }
+
+    /**
+     * @param concreteClass concrete class of the component
+     * @return true if components of the given class are registered through this registry
+     */
+    public boolean hasRegistrations(Class<?> concreteClass) {
+        return registrations.contains(concreteClass);
+    }
+
     @Override
     public ComponentFilterBuilder getComponentFilterBuilder() {
         return componentFilterBuilder;
@@ -186,32 +576,58 @@ public class OsgiComponentRegistry extends AbstractComponentRegistry {
     @SuppressWarnings({ "unchecked", "rawtypes" })
     @Override
     public <T extends BaseEntitySystemApi> T findEntitySystemApi(String entityClassName) {
-        return (T) scanWaterServicesFor(BaseEntitySystemApi.class, service -> service.getEntityType().getName().equals(entityClassName));
+        return (T) findEntityComponent(entitySystemApis, BaseEntitySystemApi.class, entityClassName, service -> service.getEntityType().getName().equals(entityClassName));
     }
 
     @SuppressWarnings({ "unchecked", "rawtypes" })
     @Override
     public <T extends BaseRepository> T findEntityRepository(String entityClassName) {
-        return (T) scanWaterServicesFor(BaseRepository.class, service -> service.getEntityType().getName().equals(entityClassName));
+        return (T) findEntityComponent(entityRepositories, BaseRepository.class, entityClassName, service -> service.getEntityType().getName().equals(entityClassName));
+    }
+
+    /**
+     * Looks for the entity component inside the index, then in services advertising the entity type property.
+     * As last resort scans water services which do not advertise their entity type, caching the result.
+     */
+    private <T extends Service> Service findEntityComponent(Map<String, ServiceReference<?>> entityIndex, Class<T> serviceClass, String entityClassName, Predicate<T> filter) {
+        if (entityClassName == null)
+            return null;
+        try {
+            BundleContext ctx = getBundleContext(OsgiComponentRegistry.class);
+            ServiceReference<?> serviceReference = entityIndex.get(entityClassName);
+            //bundle is null when the service has been unregistered
+            if (serviceReference != null && serviceReference.getBundle() != null) {
+                Object service = getService(ctx, serviceReference);
+                if (service != null)
+                    return (Service) service;
+            }
+            if (serviceReference != null)
+                entityIndex.remove(entityClassName, serviceReference);
+            ServiceReference<?>[] advertised = ctx.getServiceReferences(serviceClass.getName(), "(&(" + OSGiUtil.WATER_OSGI_PROPS_PROXY + "=true)(" + ENTITY_TYPE + "=" + OSGiComponentFilterBuilder.escapeValue(entityClassName) + "))");
+            if (advertised != null && advertised.length > 0) {
+                entityIndex.put(entityClassName, advertised[0]);
+                return (Service) getService(ctx, advertised[0]);
+            }
+        } catch (Exception e) {
+            log.error(e.getMessage(), e);
+        }
+        return scanWaterServicesFor(entityIndex, entityClassName, serviceClass, filter);
     }
 
     @SuppressWarnings("unchecked")
-    private <T extends Service> Service scanWaterServicesFor(Class<T> serviceClass, Predicate<T> filter) {
+    private <T extends Service> Service scanWaterServicesFor(Map<String, ServiceReference<?>> entityIndex, String entityClassName, Class<T> serviceClass, Predicate<T> filter) {
         try {
             BundleContext ctx = getBundleContext(OsgiComponentRegistry.class);
-            ServiceReference<?>[] services = ctx.getServiceReferences((String) null, "(" + OSGiUtil.WATER_OSGI_PROPS_PROXY + "=true)");
-            Optional<?> serviceOpt = Arrays.stream(services).map(ctx::getService).filter(service -> {
-                Class<?>[] interfaces = service.getClass().getInterfaces();
-                return Arrays.stream(interfaces).anyMatch(curInterface -> {
-                    if (serviceClass.isAssignableFrom(curInterface)) {
-                        return filter.test((T) service);
-                    }
-                    return false;
-                });
-            }).findAny();
-
-            if (serviceOpt.isPresent()) {
-                return (T) serviceOpt.get();
+            //services advertising the entity type have already been checked through the index or the filter
+            ServiceReference<?>[] services = ctx.getServiceReferences((String) null, "(&(" + OSGiUtil.WATER_OSGI_PROPS_PROXY + "=true)(!(" + ENTITY_TYPE + "=*)))");
+            if (services == null)
+                return null;
+            for (ServiceReference<?> serviceReference : services) {
+                Object service = getService(ctx, serviceReference);
+                if (service != null && isEntityComponent(service, serviceClass, filter)) {
+                    entityIndex.put(entityClassName, serviceReference);
+                    return (T) service;
+                }
             }
         } catch (Exception e) {
             log.error(e.getMessage(), e);
@@ -219,6 +635,42 @@ public class OsgiComponentRegistry extends AbstractComponentRegistry {
         return null;
     }
 
+    @SuppressWarnings("unchecked")
+    private <T extends Service> boolean isEntityComponent(Object service, Class<T> serviceClass, Predicate<T> filter) {
+        Class<?>[] interfaces = service.getClass().getInterfaces();
+        return Arrays.stream(interfaces).anyMatch(curInterface -> serviceClass.isAssignableFrom(curInterface) && filter.test((T) service));
+    }
+
+    @SuppressWarnings("rawtypes")
+    private String getEntityType(Object component) {
+        Class<?> entityType = null;
+        try {
+            if (component instanceof BaseEntitySystemApi entitySystemApi)
+                entityType = entitySystemApi.getEntityType();
+            else if (component instanceof BaseRepository repository)
+                entityType = repository.getEntityType();
+        } catch (RuntimeException e) {
+            //component not ready yet, it is registered anyway and found by scanning
+            log.warn("Impossible to read entity type of {}: {}", component.getClass().getName(), e.getMessage());
+        }
+        return (entityType != null) ? entityType.getName() : null;
+    }
+
+    private void indexEntityComponent(Object component, String entityType, ServiceReference<?> serviceReference) {
+        if (component instanceof BaseEntitySystemApi)
+            entitySystemApis.put(entityType, serviceReference);
+        else if (component instanceof BaseRepository)
+            entityRepositories.put(entityType, serviceReference);
+    }
+
+    private void removeEntityComponent(ServiceReference<?> serviceReference) {
+        Object entityType = serviceReference.getProperty(ENTITY_TYPE);
+        if (entityType != null) {
+            entitySystemApis.remove(entityType.toString(), serviceReference);
+            entityRepositories.remove(entityType.toString(), serviceReference);
+        }
+    }
+
     private <T> BundleContext getBundleContext(Class<T> componentClass) {
         return FrameworkUtil.getBundle(componentClass).getBundleContext();
     }
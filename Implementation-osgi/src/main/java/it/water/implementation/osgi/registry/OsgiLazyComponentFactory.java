@@ -0,0 +1,88 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.implementation.osgi.registry;
+
+import it.water.core.api.registry.ComponentRegistry;
+import it.water.core.api.service.Service;
+import it.water.implementation.osgi.util.OSGiUtil;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.ServiceFactory;
+import org.osgi.framework.ServiceRegistration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.function.Supplier;
+
+
+/**
+ * @param <T>
+ * @Author Aristide Cittadino
+ * Service factory used for lazy registrations.
+ * The component, and its proxy when it is a water Service, is created the first time some bundle gets the service.
+ * The same instance is then shared between all bundles.
+ */
+class OsgiLazyComponentFactory<T> implements ServiceFactory<T> {
+    private static final Logger log = LoggerFactory.getLogger(OsgiLazyComponentFactory.class);
+
+    private final Bundle bundleSource;
+    private final String[] componentClassesNames;
+    private final Class<? extends T> concreteClass;
+    private final Supplier<? extends T> componentSupplier;
+    private final ComponentRegistry componentRegistry;
+    private volatile T instance;
+
+    OsgiLazyComponentFactory(Bundle bundleSource, String[] componentClassesNames, Class<? extends T> concreteClass, Supplier<? extends T> componentSupplier, ComponentRegistry componentRegistry) {
+        this.bundleSource = bundleSource;
+        this.componentClassesNames = componentClassesNames;
+        this.concreteClass = concreteClass;
+        this.componentSupplier = componentSupplier;
+        this.componentRegistry = componentRegistry;
+    }
+
+    @Override
+    public T getService(Bundle bundle, ServiceRegistration<T> registration) {
+        T current = this.instance;
+        if (current == null) {
+            synchronized (this) {
+                if (this.instance == null)
+                    this.instance = createInstance(registration);
+                current = this.instance;
+            }
+        }
+        return current;
+    }
+
+    @Override
+    public void ungetService(Bundle bundle, ServiceRegistration<T> registration, T service) {
+        //the instance is shared, it lives as long as the registration
+    }
+
+    /**
+     * Creates the component and wraps it inside the water proxy when needed.
+     *
+     * @param registration service registration
+     * @return the instance to be returned to the framework
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    protected T createInstance(ServiceRegistration<T> registration) {
+        log.debug("Creating lazy component {}", concreteClass.getName());
+        T component = componentSupplier.get();
+        if (component instanceof Service service)
+            return (T) OSGiUtil.createProxyService(bundleSource, componentClassesNames, concreteClass.getClassLoader(), service, (ServiceRegistration) registration, componentRegistry);
+        return component;
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.implementation.osgi.registry;
+
+import org.osgi.framework.ServiceReference;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+
+
+/**
+ * @Author Aristide Cittadino
+ * Read only list of components ordered by priority.
+ * Each service is fetched from the framework only when the related element is accessed for the first time,
+ * so unused candidates are never activated.
+ */
+class OsgiLazyComponentList<T> extends AbstractList<T> implements RandomAccess {
+    private final ServiceReference<T>[] serviceReferences;
+    private final Function<ServiceReference<T>, T> serviceResolver;
+    private final AtomicReferenceArray<T> components;
+
+    OsgiLazyComponentList(ServiceReference<T>[] serviceReferences, Function<ServiceReference<T>, T> serviceResolver) {
+        this.serviceReferences = serviceReferences;
+        this.serviceResolver = serviceResolver;
+        this.components = new AtomicReferenceArray<>(serviceReferences.length);
+    }
+
+    @Override
+    public T get(int index) {
+        T component = components.get(index);
+        if (component == null) {
+            component = serviceResolver.apply(serviceReferences[index]);
+            //keeping the first resolved instance if another thread got there before
+            if (component != null && !components.compareAndSet(index, null, component))
+                component = components.get(index);
+        }
+        return component;
+    }
+
+    @Override
+    public int size() {
+        return serviceReferences.length;
+    }
+}
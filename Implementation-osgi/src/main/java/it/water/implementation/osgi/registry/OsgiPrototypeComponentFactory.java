@@ -0,0 +1,44 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.implementation.osgi.registry;
+
+import it.water.core.api.registry.ComponentRegistry;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.PrototypeServiceFactory;
+import org.osgi.framework.ServiceRegistration;
+
+import java.util.function.Supplier;
+
+
+/**
+ * @param <T>
+ * @Author Aristide Cittadino
+ * Prototype scoped lazy registration, meant for components which are not thread safe.
+ * A new component is created each time the service is requested through service objects,
+ * the component registry resolves prototype services that way on each lookup.
+ */
+class OsgiPrototypeComponentFactory<T> extends OsgiLazyComponentFactory<T> implements PrototypeServiceFactory<T> {
+
+    OsgiPrototypeComponentFactory(Bundle bundleSource, String[] componentClassesNames, Class<? extends T> concreteClass, Supplier<? extends T> componentSupplier, ComponentRegistry componentRegistry) {
+        super(bundleSource, componentClassesNames, concreteClass, componentSupplier, componentRegistry);
+    }
+
+    @Override
+    public T getService(Bundle bundle, ServiceRegistration<T> registration) {
+        return createInstance(registration);
+    }
+}
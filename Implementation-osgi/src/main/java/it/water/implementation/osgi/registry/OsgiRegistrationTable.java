@@ -0,0 +1,158 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.implementation.osgi.registry;
+
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceRegistration;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * @Author Aristide Cittadino
+ * Registrations done through OsgiComponentRegistry.
+ * Many registrations of the same concrete class are allowed, each one is identified by its service id.
+ * The table is safe for concurrent use, so bundles can be started in parallel.
+ */
+class OsgiRegistrationTable {
+    //service id -> registration
+    private final Map<Long, RegistrationEntry> registrations = new ConcurrentHashMap<>();
+    //concrete class -> service ids
+    private final Map<Class<?>, Set<Long>> registrationsByClass = new ConcurrentHashMap<>();
+    //component instance -> service id
+    private final Map<ComponentKey, Long> registrationsByComponent = new ConcurrentHashMap<>();
+
+    /**
+     * @param concreteClass concrete class of the component
+     * @param component     registered instance, can be null for lazy registrations
+     * @param registration  service registration
+     */
+    void add(Class<?> concreteClass, Object component, ServiceRegistration<?> registration) {
+        Long serviceId = (Long) registration.getReference().getProperty(Constants.SERVICE_ID);
+        ComponentKey componentKey = (component != null) ? new ComponentKey(component) : null;
+        registrations.put(serviceId, new RegistrationEntry(concreteClass, componentKey, registration));
+        //added inside compute, so a concurrent removal cannot drop the set in the meanwhile
+        registrationsByClass.compute(concreteClass, (key, classRegistrations) -> {
+            Set<Long> ids = (classRegistrations != null) ? classRegistrations : ConcurrentHashMap.newKeySet();
+            ids.add(serviceId);
+            return ids;
+        });
+        if (componentKey != null)
+            registrationsByComponent.put(componentKey, serviceId);
+    }
+
+    /**
+     * Removes the registration of the given component.
+     * If the instance is unknown, one of the lazy registrations of its concrete class is removed,
+     * since lazy components are created by the framework and never recorded.
+     *
+     * @param concreteClass concrete class of the component
+     * @param component     registered instance
+     * @return the removed registration, null if not found or already removed by another thread
+     */
+    ServiceRegistration<?> remove(Class<?> concreteClass, Object component) {
+        Long serviceId = (component != null) ? registrationsByComponent.get(new ComponentKey(component)) : null;
+        if (serviceId != null) {
+            RegistrationEntry entry = removeEntry(serviceId);
+            if (entry != null)
+                return entry.registration;
+        }
+        Set<Long> classRegistrations = registrationsByClass.get(concreteClass);
+        if (classRegistrations != null) {
+            Iterator<Long> it = classRegistrations.iterator();
+            while (it.hasNext()) {
+                Long classServiceId = it.next();
+                RegistrationEntry classEntry = registrations.get(classServiceId);
+                //registrations of other instances must not be touched
+                if (classEntry == null || classEntry.componentKey != null)
+                    continue;
+                RegistrationEntry entry = removeEntry(classServiceId);
+                if (entry != null)
+                    return entry.registration;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param serviceId service id of the registration
+     * @return the removed registration, null if not found or already removed by another thread
+     */
+    ServiceRegistration<?> remove(Long serviceId) {
+        RegistrationEntry entry = removeEntry(serviceId);
+        return (entry != null) ? entry.registration : null;
+    }
+
+    /**
+     * @param concreteClass concrete class of the component
+     * @return true if at least one registration of the class is in the table
+     */
+    boolean contains(Class<?> concreteClass) {
+        return registrationsByClass.containsKey(concreteClass);
+    }
+
+    private RegistrationEntry removeEntry(Long serviceId) {
+        //only one thread can win the removal of the same entry
+        RegistrationEntry entry = registrations.remove(serviceId);
+        if (entry != null) {
+            //empty sets are dropped, so classes of refreshed or uninstalled bundles are not kept
+            registrationsByClass.computeIfPresent(entry.concreteClass, (key, classRegistrations) -> {
+                classRegistrations.remove(serviceId);
+                return classRegistrations.isEmpty() ? null : classRegistrations;
+            });
+            if (entry.componentKey != null)
+                registrationsByComponent.remove(entry.componentKey, serviceId);
+        }
+        return entry;
+    }
+
+    private static class RegistrationEntry {
+        private final Class<?> concreteClass;
+        private final ComponentKey componentKey;
+        private final ServiceRegistration<?> registration;
+
+        private RegistrationEntry(Class<?> concreteClass, ComponentKey componentKey, ServiceRegistration<?> registration) {
+            this.concreteClass = concreteClass;
+            this.componentKey = componentKey;
+            this.registration = registration;
+        }
+    }
+
+    /**
+     * Identity based key, components may override equals and hashCode.
+     */
+    private static class ComponentKey {
+        private final Object component;
+
+        private ComponentKey(Object component) {
+            this.component = component;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof ComponentKey other && other.component == this.component;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(component);
+        }
+    }
+}
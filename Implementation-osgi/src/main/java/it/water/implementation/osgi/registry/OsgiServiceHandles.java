@@ -0,0 +1,162 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.implementation.osgi.registry;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.SynchronousBundleListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * @Author Aristide Cittadino
+ * Keeps the service objects resolved by the component registry.
+ * Each (service, requesting bundle) pair is fetched from the framework just once, so use counts do not grow on every lookup.
+ * Handles are released with ungetService when the service is unregistered, and dropped when the requesting bundle stops.
+ */
+class OsgiServiceHandles implements ServiceListener, SynchronousBundleListener {
+    private static final Logger log = LoggerFactory.getLogger(OsgiServiceHandles.class);
+
+    private final BundleContext bundleContext;
+    //service id -> consumers of the service, kept closed while the service is unregistering
+    private final Map<Long, ServiceConsumers> handles = new ConcurrentHashMap<>();
+
+    OsgiServiceHandles(BundleContext bundleContext) {
+        this.bundleContext = bundleContext;
+    }
+
+    void open() {
+        bundleContext.addServiceListener(this);
+        bundleContext.addBundleListener(this);
+    }
+
+    /**
+     * Releases every handle and stops listening for framework events.
+     */
+    void close() {
+        try {
+            bundleContext.removeServiceListener(this);
+            bundleContext.removeBundleListener(this);
+        } catch (IllegalStateException e) {
+            log.debug("Bundle context no more valid while closing service handles: {}", e.getMessage());
+        }
+        handles.values().forEach(ServiceConsumers::close);
+        handles.clear();
+    }
+
+    /**
+     * @param context          context of the bundle which needs the service
+     * @param serviceReference service reference
+     * @return the service object, fetched from the framework only the first time
+     */
+    @SuppressWarnings("unchecked")
+    <T> T getService(BundleContext context, ServiceReference<T> serviceReference) {
+        Long serviceId = (Long) serviceReference.getProperty(Constants.SERVICE_ID);
+        long bundleId = context.getBundle().getBundleId();
+        ServiceConsumers consumers = handles.get(serviceId);
+        ServiceHandle handle = (consumers != null) ? consumers.handles.get(bundleId) : null;
+        if (handle != null)
+            return (T) handle.service;
+        T service = context.getService(serviceReference);
+        if (service == null)
+            return null;
+        handle = new ServiceHandle(context, serviceReference, service);
+        consumers = handles.computeIfAbsent(serviceId, id -> new ServiceConsumers(serviceReference));
+        ServiceHandle existing = consumers.handles.putIfAbsent(bundleId, handle);
+        if (existing != null) {
+            //another thread got the service first, giving back the additional use count
+            handle.release();
+            return (T) existing.service;
+        }
+        //checked after insertion: either this thread or the UNREGISTERING listener sees the handle and releases it, once
+        if (consumers.closed || serviceReference.getBundle() == null)
+            consumers.release(bundleId, handle);
+        return service;
+    }
+
+    @Override
+    public void serviceChanged(ServiceEvent event) {
+        if (event.getType() == ServiceEvent.UNREGISTERING) {
+            ServiceReference<?> serviceReference = event.getServiceReference();
+            //the closed entry is kept until the service is gone, so late lookups do not store new handles
+            handles.computeIfAbsent((Long) serviceReference.getProperty(Constants.SERVICE_ID), id -> new ServiceConsumers(serviceReference)).close();
+            handles.values().removeIf(consumers -> consumers.closed && consumers.serviceReference.getBundle() == null);
+        }
+    }
+
+    @Override
+    public void bundleChanged(BundleEvent event) {
+        //the framework already released services used by stopped bundles
+        if (event.getType() == BundleEvent.STOPPED || event.getType() == BundleEvent.UNINSTALLED) {
+            long bundleId = event.getBundle().getBundleId();
+            handles.values().forEach(consumers -> consumers.handles.remove(bundleId));
+        }
+    }
+
+    private static class ServiceConsumers {
+        private final ServiceReference<?> serviceReference;
+        //requesting bundle id -> handle
+        private final Map<Long, ServiceHandle> handles = new ConcurrentHashMap<>();
+        private volatile boolean closed;
+
+        private ServiceConsumers(ServiceReference<?> serviceReference) {
+            this.serviceReference = serviceReference;
+        }
+
+        private void close() {
+            closed = true;
+            handles.keySet().forEach(bundleId -> {
+                ServiceHandle handle = handles.remove(bundleId);
+                if (handle != null)
+                    handle.release();
+            });
+        }
+
+        private void release(long bundleId, ServiceHandle handle) {
+            if (handles.remove(bundleId, handle))
+                handle.release();
+        }
+    }
+
+    private static class ServiceHandle {
+        private final BundleContext context;
+        private final ServiceReference<?> serviceReference;
+        private final Object service;
+
+        private ServiceHandle(BundleContext context, ServiceReference<?> serviceReference, Object service) {
+            this.context = context;
+            this.serviceReference = serviceReference;
+            this.service = service;
+        }
+
+        private void release() {
+            try {
+                context.ungetService(serviceReference);
+            } catch (IllegalStateException e) {
+                log.debug("Bundle context no more valid, service already released by the framework: {}", e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.implementation.osgi.util;
+
+import it.water.implementation.osgi.interceptors.OsgiGeneratedProxyClass;
+import it.water.implementation.osgi.interceptors.OsgiProxyGenerator;
+import it.water.implementation.osgi.interceptors.OsgiServiceInterceptor;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleReference;
+import org.osgi.framework.SynchronousBundleListener;
+import org.osgi.framework.wiring.BundleRevision;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+
+/**
+ * @Author Aristide Cittadino
+ * Cache of the proxy classes used for Water services.
+ * Entries are keyed by (bundle revision, class loader, proxy engine, sorted interface names) and keep the resolved interfaces
+ * together with the proxy constructor, so creating a proxy for an already seen interface set does not load any class.
+ * Entries are evicted when the bundle exposing the service, or the bundle owning the class loader, is refreshed or uninstalled.
+ */
+class OSGiProxyClassCache implements SynchronousBundleListener {
+    private static final Logger log = LoggerFactory.getLogger(OSGiProxyClassCache.class);
+    //used only to obtain the jdk proxy class
+    private static final InvocationHandler NO_OP_HANDLER = (proxy, method, args) -> null;
+
+    private final Map<ProxyClassKey, ProxyClass> proxyClasses = new ConcurrentHashMap<>();
+
+    /**
+     * @param bundle         bundle which exposes the service
+     * @param interfaceNames interfaces to proxy
+     * @param cl             class loader used by jdk proxies
+     * @param generated      true if the proxy class should be generated by OsgiProxyGenerator
+     * @param interfacesResolver loads the interfaces from the bundle, invoked only on cache misses
+     * @return the proxy class
+     */
+    ProxyClass getProxyClass(Bundle bundle, String[] interfaceNames, ClassLoader cl, boolean generated, Function<String[], Class<?>[]> interfacesResolver) {
+        ProxyClassKey key = new ProxyClassKey(bundle, interfaceNames, cl, generated);
+        ProxyClass proxyClass = proxyClasses.get(key);
+        if (proxyClass == null) {
+            proxyClass = createProxyClass(interfacesResolver.apply(interfaceNames), cl, generated);
+            ProxyClass existing = proxyClasses.putIfAbsent(key, proxyClass);
+            if (existing != null)
+                proxyClass = existing;
+        }
+        return proxyClass;
+    }
+
+    private ProxyClass createProxyClass(Class<?>[] interfaces, ClassLoader cl, boolean generated) {
+        if (generated) {
+            try {
+                return new ProxyClass(interfaces, cl, OsgiProxyGenerator.defineProxyClass(interfaces), null);
+            } catch (IllegalArgumentException e) {
+                log.debug("Cannot generate proxy class for {}, using java.lang.reflect.Proxy: {}", Arrays.toString(interfaces), e.getMessage());
+            }
+        }
+        Class<?> jdkProxyClass = Proxy.newProxyInstance(cl, interfaces, NO_OP_HANDLER).getClass();
+        Constructor<?> constructor = null;
+        try {
+            constructor = jdkProxyClass.getConstructor(InvocationHandler.class);
+            //proxies of non public interfaces are not public
+            if (!Modifier.isPublic(jdkProxyClass.getModifiers()))
+                constructor.setAccessible(true);
+        } catch (NoSuchMethodException | RuntimeException e) {
+            log.debug("Proxy constructor not accessible for {}, proxies will be created through Proxy.newProxyInstance: {}", Arrays.toString(interfaces), e.getMessage());
+            constructor = null;
+        }
+        return new ProxyClass(interfaces, cl, null, constructor);
+    }
+
+    @Override
+    public void bundleChanged(BundleEvent event) {
+        //refreshed bundles become unresolved before getting a new revision
+        if (event.getType() == BundleEvent.UNINSTALLED || event.getType() == BundleEvent.UNRESOLVED) {
+            long bundleId = event.getBundle().getBundleId();
+            proxyClasses.keySet().removeIf(key -> key.bundleId == bundleId || key.loaderBundleId == bundleId);
+        }
+    }
+
+    void clear() {
+        proxyClasses.clear();
+    }
+
+    /**
+     * Proxy class of an interface set, with resolved interfaces and constructor.
+     */
+    static class ProxyClass {
+        private final Class<?>[] interfaces;
+        private final String[] interfaceNames;
+        private final ClassLoader cl;
+        private final OsgiGeneratedProxyClass generatedProxyClass;
+        private final Constructor<?> jdkProxyConstructor;
+
+        private ProxyClass(Class<?>[] interfaces, ClassLoader cl, OsgiGeneratedProxyClass generatedProxyClass, Constructor<?> jdkProxyConstructor) {
+            this.interfaces = interfaces;
+            this.interfaceNames = Arrays.stream(interfaces).map(Class::getName).toArray(String[]::new);
+            this.cl = cl;
+            this.generatedProxyClass = generatedProxyClass;
+            this.jdkProxyConstructor = jdkProxyConstructor;
+        }
+
+        /**
+         * @return names of the interfaces which have been found in the bundle
+         */
+        String[] getInterfaceNames() {
+            return interfaceNames.clone();
+        }
+
+        Object newInstance(OsgiServiceInterceptor<?> osgiServiceInterceptor) {
+            if (generatedProxyClass != null)
+                return generatedProxyClass.newInstance(osgiServiceInterceptor);
+            if (jdkProxyConstructor != null) {
+                try {
+                    return jdkProxyConstructor.newInstance(osgiServiceInterceptor);
+                } catch (InstantiationException | IllegalAccessException | InvocationTargetException e) {
+                    log.debug("Cannot instantiate proxy through the cached constructor: {}", e.getMessage());
+                }
+            }
+            return Proxy.newProxyInstance(cl, interfaces, osgiServiceInterceptor);
+        }
+    }
+
+    private static class ProxyClassKey {
+        private final long bundleId;
+        private final BundleRevision revision;
+        private final ClassLoader cl;
+        //bundle owning the class loader, -1 if it does not belong to a bundle
+        private final long loaderBundleId;
+        private final boolean generated;
+        private final String[] sortedInterfaceNames;
+        private final int hash;
+
+        private ProxyClassKey(Bundle bundle, String[] interfaceNames, ClassLoader cl, boolean generated) {
+            this.bundleId = bundle.getBundleId();
+            this.revision = bundle.adapt(BundleRevision.class);
+            this.cl = cl;
+            this.loaderBundleId = (cl instanceof BundleReference bundleReference && bundleReference.getBundle() != null) ? bundleReference.getBundle().getBundleId() : -1;
+            this.generated = generated;
+            this.sortedInterfaceNames = interfaceNames.clone();
+            Arrays.sort(this.sortedInterfaceNames);
+            this.hash = Objects.hash(bundleId, System.identityHashCode(revision), System.identityHashCode(cl), generated, Arrays.hashCode(sortedInterfaceNames));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof ProxyClassKey other))
+                return false;
+            return bundleId == other.bundleId && revision == other.revision && cl == other.cl && generated == other.generated && Arrays.equals(sortedInterfaceNames, other.sortedInterfaceNames);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
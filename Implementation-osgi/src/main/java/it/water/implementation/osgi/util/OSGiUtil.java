@@ -17,8 +17,10 @@ package it.water.implementation.osgi.util;
 
 import it.water.core.api.registry.ComponentRegistry;
 import it.water.core.api.service.Service;
+import it.water.implementation.osgi.interceptors.OsgiGeneratedServiceProxy;
 import it.water.implementation.osgi.interceptors.OsgiServiceInterceptor;
 import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
 import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.framework.ServiceReference;
 import org.osgi.framework.ServiceRegistration;
@@ -31,6 +33,14 @@ import java.util.*;
 public class OSGiUtil {
     private static Logger log = LoggerFactory.getLogger(OSGiUtil.class);
     public static final String WATER_OSGI_PROPS_PROXY = "it.water.core.api.interceptors.isProxy";
+    //framework property which selects how service proxies are built: "jdk" (default) or "generated"
+    public static final String PROXY_ENGINE_PROPERTY = "it.water.osgi.proxy.engine";
+    public static final String PROXY_ENGINE_GENERATED = "generated";
+    //framework property which enables registering services without interceptable methods as they are (default false)
+    public static final String PROXY_PASSTHROUGH_PROPERTY = "it.water.osgi.proxy.passthrough";
+    //service property which flags water services registered without proxy, decided when the service is registered
+    public static final String WATER_OSGI_PROPS_PASSTHROUGH = "it.water.core.api.interceptors.isPassthrough";
+    private static final OSGiProxyClassCache proxyClassCache = new OSGiProxyClassCache();
 
     private OSGiUtil() {
     }
@@ -42,13 +52,9 @@ public class OSGiUtil {
      * @return
      */
     public static Dictionary<String, Object> toDictionary(Map<Object, Object> props) {
-        Map<String, Object> map = new HashMap<>();
-        Iterator<?> it = props.keySet().iterator();
-        while (it.hasNext()) {
-            String key = (String) it.next();
-            map.put(key, props.get(key));
-        }
-        return new Hashtable<>(map);
+        Hashtable<String, Object> dictionary = new Hashtable<>(Math.max(props.size() * 2, 11));
+        props.forEach((key, value) -> dictionary.put((String) key, value));
+        return dictionary;
     }
 
     /**
@@ -60,6 +66,50 @@ public class OSGiUtil {
         return waterProxyProp != null && !waterProxyProp.isBlank() && Boolean.parseBoolean(waterProxyProp);
     }
 
+    /**
+     * @param component component, proxied or not
+     * @return the interceptor of the water proxy, null if the component is not a water proxy
+     */
+    public static OsgiServiceInterceptor<?> getServiceInterceptor(Object component) {
+        if (component instanceof OsgiGeneratedServiceProxy generatedProxy)
+            return generatedProxy.waterServiceInterceptor();
+        if (component != null && Proxy.isProxyClass(component.getClass()) && Proxy.getInvocationHandler(component) instanceof OsgiServiceInterceptor<?> osgiServiceInterceptor)
+            return osgiServiceInterceptor;
+        return null;
+    }
+
+    /**
+     * @param bundle bundle which owns the service
+     * @return true if passthrough mode is enabled by the framework property PROXY_PASSTHROUGH_PROPERTY
+     */
+    public static boolean isPassthroughEnabled(Bundle bundle) {
+        BundleContext bundleContext = bundle.getBundleContext();
+        return bundleContext != null && Boolean.parseBoolean(bundleContext.getProperty(PROXY_PASSTHROUGH_PROPERTY));
+    }
+
+    /**
+     * In passthrough mode water services without interceptable methods are exposed without proxy,
+     * since the proxy would only delegate to the service.
+     *
+     * @param bundle  bundle which owns the service
+     * @param service water service
+     * @return true if the service can be exposed as it is
+     */
+    public static boolean isPassthroughService(Bundle bundle, Object service) {
+        return isPassthroughEnabled(bundle) && !OsgiServiceInterceptor.isInterceptable(service.getClass());
+    }
+
+    /**
+     * Reads the verdict from the service properties, so the service is not fetched from the framework.
+     *
+     * @param sr service reference
+     * @return true if the service has been registered without proxy and passthrough mode is enabled for its bundle
+     */
+    public static boolean isPassthroughService(ServiceReference<?> sr) {
+        Bundle bundle = sr.getBundle();
+        return bundle != null && Boolean.parseBoolean(String.valueOf(sr.getProperty(WATER_OSGI_PROPS_PASSTHROUGH))) && isPassthroughEnabled(bundle);
+    }
+
     /**
      * Check wether interfaces or instance represents a water service.
      * Basically if the instance or interfaces inherit water Service interface.
@@ -97,13 +147,28 @@ public class OSGiUtil {
      * @param service
      */
     public static <S extends Service> ServiceRegistration<S> registerProxyService(Bundle bundleSource, String[] interfacesToRegister, Dictionary<String, Object> componentConfiguration, ClassLoader cl, S service, ComponentRegistry componentRegistry) {
+        return registerProxyService(bundleSource, interfacesToRegister, componentConfiguration, cl, new OsgiServiceInterceptor<>(service, componentRegistry));
+    }
+
+    /**
+     * Register the proxied version of an Service, wrapped by the given interceptor
+     *
+     * @param bundleSource           bundle which owns the service
+     * @param interfacesToRegister   interfaces exposed by the proxy
+     * @param componentConfiguration proxy registration properties
+     * @param cl                     class loader used to define the proxy
+     * @param osgiServiceInterceptor interceptor which wraps the service
+     * @return the proxy registration, null if the proxy cannot be registered
+     */
+    public static <S extends Service> ServiceRegistration<S> registerProxyService(Bundle bundleSource, String[] interfacesToRegister, Dictionary<String, Object> componentConfiguration, ClassLoader cl, OsgiServiceInterceptor<S> osgiServiceInterceptor) {
         try {
-            OsgiServiceInterceptor<S> osgiServiceInterceptor = new OsgiServiceInterceptor<>(service, componentRegistry);
-            Class<?>[] toClass = toClass(interfacesToRegister, bundleSource);
-            componentConfiguration.put(WATER_OSGI_PROPS_PROXY, true);
-            Object waterServiceProxy = Proxy.newProxyInstance(cl, toClass, osgiServiceInterceptor);
+            OSGiProxyClassCache.ProxyClass proxyClass = getProxyClass(bundleSource, interfacesToRegister, cl);
+            //read only views already advertise the flag
+            if (!Boolean.TRUE.equals(componentConfiguration.get(WATER_OSGI_PROPS_PROXY)))
+                componentConfiguration.put(WATER_OSGI_PROPS_PROXY, true);
+            Object waterServiceProxy = proxyClass.newInstance(osgiServiceInterceptor);
             @SuppressWarnings("unchecked")
-            ServiceRegistration<S> registration = (ServiceRegistration<S>) bundleSource.getBundleContext().registerService(toString(toClass), waterServiceProxy, componentConfiguration);
+            ServiceRegistration<S> registration = (ServiceRegistration<S>) bundleSource.getBundleContext().registerService(proxyClass.getInterfaceNames(), waterServiceProxy, componentConfiguration);
             osgiServiceInterceptor.setRegistration(registration);
             return registration;
         } catch (NoClassDefFoundError e) {
@@ -114,21 +179,81 @@ public class OSGiUtil {
         return null;
     }
 
+    /**
+     * Creates the proxied version of a Service without registering it.
+     * Used when the proxy must be built later, for example by a service factory.
+     *
+     * @param bundleSource         bundle which owns the service
+     * @param interfacesToRegister interfaces exposed by the proxy
+     * @param cl                   class loader used to define the proxy
+     * @param service              service to wrap
+     * @param registration         registration of the service, can be null
+     * @param componentRegistry    component registry used by interceptors
+     * @return the proxy instance
+     */
+    public static <S extends Service> Object createProxyService(Bundle bundleSource, String[] interfacesToRegister, ClassLoader cl, S service, ServiceRegistration<S> registration, ComponentRegistry componentRegistry) {
+        OsgiServiceInterceptor<S> osgiServiceInterceptor = new OsgiServiceInterceptor<>(service, componentRegistry);
+        osgiServiceInterceptor.setRegistration(registration);
+        return getProxyClass(bundleSource, interfacesToRegister, cl).newInstance(osgiServiceInterceptor);
+    }
+
+    /**
+     * Returns the cached proxy class for the interfaces, built with the engine selected by the framework property PROXY_ENGINE_PROPERTY.
+     * Generated proxies fall back to java.lang.reflect.Proxy when interfaces cannot be proxied by generated classes.
+     */
+    private static OSGiProxyClassCache.ProxyClass getProxyClass(Bundle bundleSource, String[] interfaces, ClassLoader cl) {
+        return proxyClassCache.getProxyClass(bundleSource, interfaces, cl, isGeneratedProxyEngineEnabled(bundleSource), names -> toClass(names, bundleSource));
+    }
+
+    /**
+     * Starts evicting cached proxy classes of refreshed or uninstalled bundles.
+     *
+     * @param bundleContext context used to listen for bundle events
+     */
+    public static void startProxyClassCache(BundleContext bundleContext) {
+        bundleContext.addBundleListener(proxyClassCache);
+    }
+
+    /**
+     * Stops listening for bundle events and clears the cached proxy classes.
+     *
+     * @param bundleContext context used to listen for bundle events
+     */
+    public static void stopProxyClassCache(BundleContext bundleContext) {
+        try {
+            bundleContext.removeBundleListener(proxyClassCache);
+        } catch (IllegalStateException e) {
+            log.debug("Bundle context no more valid while stopping proxy class cache: {}", e.getMessage());
+        }
+        proxyClassCache.clear();
+    }
+
+    private static boolean isGeneratedProxyEngineEnabled(Bundle bundleSource) {
+        BundleContext bundleContext = bundleSource.getBundleContext();
+        return bundleContext != null && PROXY_ENGINE_GENERATED.equalsIgnoreCase(bundleContext.getProperty(PROXY_ENGINE_PROPERTY));
+    }
+
     /**
      * Unregister the proxied version of an Service
      *
      * @param bundleSource
      * @param serviceClass
      * @param <S>
+     * @deprecated proxies are unregistered by ServiceHooks when the original service goes away,
+     * this method is not used by the framework and will be removed
      */
+    @Deprecated(forRemoval = true)
     @SuppressWarnings("rawtypes")
     public static <S extends ServiceReference> void unregisterProxyService(Bundle bundleSource, Class<S> serviceClass) {
         try {
             Collection<ServiceReference<S>> references = bundleSource.getBundleContext().getServiceReferences(serviceClass, "(" + WATER_OSGI_PROPS_PROXY + "=true)");
             references.stream().forEach(ref -> {
-                OsgiServiceInterceptor<?> proxy = (OsgiServiceInterceptor) bundleSource.getBundleContext().getService(ref);
-                proxy.getRegistration().unregister();
-                log.debug("Unregistering {} as Service ", proxy.getRegistration().getReference().getBundle().getSymbolicName());
+                OsgiServiceInterceptor<?> proxy = getServiceInterceptor(bundleSource.getBundleContext().getService(ref));
+                bundleSource.getBundleContext().ungetService(ref);
+                if (proxy != null && proxy.getRegistration() != null) {
+                    log.debug("Unregistering {} as Service ", proxy.getRegistration().getReference().getBundle().getSymbolicName());
+                    proxy.getRegistration().unregister();
+                }
             });
         } catch (InvalidSyntaxException e) {
             log.error(e.getMessage(), e);
@@ -156,19 +281,4 @@ public class OSGiUtil {
         Class<?>[] returnNames = new Class<?>[names.size()];
         return names.toArray(returnNames);
     }
-
-    /**
-     * Converts classes array to array of string
-     *
-     * @param interfaces
-     * @return
-     */
-    private static String[] toString(Class<?>[] interfaces) {
-        String[] names = new String[interfaces.length];
-        int i = 0;
-        for (Class<?> clazz : interfaces) {
-            names[i++] = clazz.getName();
-        }
-        return names;
-    }
 }
@@ -25,6 +25,27 @@ import it.water.core.registry.filter.ComponentDefaultPropertyFilter;
 public class OSGiComponentFilterBuilder implements ComponentFilterBuilder {
     public static final OSGiComponentFilterImplementation OSGI_COMPONENT_FILTER_IMPLEMENTATION = new OSGiComponentFilterImplementation();
 
+    /**
+     * Escapes the characters with special meaning inside LDAP filter values: backslash, asterisk and parentheses.
+     *
+     * @param value raw value
+     * @return value which can be safely used inside a filter expression
+     */
+    public static String escapeValue(String value) {
+        StringBuilder sb = null;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '*' || c == '(' || c == ')') {
+                if (sb == null)
+                    sb = new StringBuilder(value.length() + 8).append(value, 0, i);
+                sb.append('\\');
+            }
+            if (sb != null)
+                sb.append(c);
+        }
+        return (sb != null) ? sb.toString() : value;
+    }
+
     public ComponentFilter createFilter(String name, String value) {
         return new ComponentDefaultPropertyFilter(name, value, OSGI_COMPONENT_FILTER_IMPLEMENTATION);
     }
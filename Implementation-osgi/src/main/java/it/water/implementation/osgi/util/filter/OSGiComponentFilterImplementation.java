@@ -1,4 +1,3 @@
-
 /*
  * Copyright 2024 Aristide Cittadino
  *
@@ -19,6 +18,12 @@ package it.water.implementation.osgi.util.filter;
 
 import it.water.core.api.registry.filter.FilterImplementation;
 import it.water.core.registry.filter.ComponentAbstractFilter;
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 /**
@@ -26,5 +31,28 @@ import it.water.core.registry.filter.ComponentAbstractFilter;
  * Component filter implementation for osgi
  */
 public class OSGiComponentFilterImplementation extends ComponentAbstractFilter implements FilterImplementation {
+    private static final int MAX_COMPILED_FILTERS = 512;
+    //compiled filters, the same expressions are used over and over by services
+    private static final Map<String, Filter> compiledFilters = new ConcurrentHashMap<>();
 
+    /**
+     * Returns the compiled version of the given filter expression.
+     * Equal expressions share the same compiled filter.
+     *
+     * @param filterExpression LDAP filter expression
+     * @return compiled filter
+     * @throws InvalidSyntaxException if the expression is not a valid filter
+     */
+    public static Filter compile(String filterExpression) throws InvalidSyntaxException {
+        Filter filter = compiledFilters.get(filterExpression);
+        if (filter != null)
+            return filter;
+        //at worst the same expression is parsed twice
+        filter = FrameworkUtil.createFilter(filterExpression);
+        //bounding the cache when callers build filters with per-request values, hot expressions come back soon
+        if (compiledFilters.size() >= MAX_COMPILED_FILTERS)
+            compiledFilters.clear();
+        Filter existing = compiledFilters.putIfAbsent(filterExpression, filter);
+        return (existing != null) ? existing : filter;
+    }
 }
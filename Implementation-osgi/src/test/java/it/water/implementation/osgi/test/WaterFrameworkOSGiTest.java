@@ -26,12 +26,23 @@ import it.water.core.interceptors.annotations.implementation.WaterComponentsInje
 import it.water.core.model.exceptions.ValidationException;
 import it.water.core.registry.model.ComponentConfigurationFactory;
 import it.water.core.security.model.principal.UserPrincipal;
+import it.water.implementation.core.bundle.PropertyHandle;
+import it.water.implementation.core.bundle.PropertyParsers;
+import it.water.implementation.core.interceptors.InvocationPlan;
+import it.water.implementation.osgi.bundle.OsgiApplicationProperties;
+import it.water.implementation.osgi.interceptors.OsgiGeneratedServiceProxy;
+import it.water.implementation.osgi.interceptors.OsgiProxyGenerator;
+import it.water.implementation.osgi.interceptors.OsgiServiceInterceptor;
 import it.water.implementation.osgi.registry.OsgiApplicationConfiguration;
+import it.water.implementation.osgi.registry.OsgiComponentEvent;
+import it.water.implementation.osgi.registry.OsgiComponentRegistrationRequest;
+import it.water.implementation.osgi.registry.OsgiComponentRegistry;
 import it.water.implementation.osgi.security.OsgiSecurityContext;
 import it.water.implementation.osgi.test.bundle.ResourceSystemApi;
 import it.water.implementation.osgi.test.bundle.ServiceInterface;
 import it.water.implementation.osgi.test.bundle.ServiceInterfaceImpl2;
 import it.water.implementation.osgi.test.bundle.TestResource;
+import it.water.implementation.osgi.util.OSGiUtil;
 import it.water.implementation.osgi.util.filter.OSGiComponentFilterBuilder;
 import org.apache.karaf.features.FeaturesService;
 import org.apache.karaf.itests.KarafTestSupport;
@@ -44,13 +55,44 @@ import org.ops4j.pax.exam.Option;
 import org.ops4j.pax.exam.junit.PaxExam;
 import org.ops4j.pax.exam.spi.reactors.ExamReactorStrategy;
 import org.ops4j.pax.exam.spi.reactors.PerSuite;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.cm.Configuration;
+import org.osgi.service.cm.ConfigurationAdmin;
+import org.osgi.service.cm.ConfigurationEvent;
+import org.osgi.service.cm.ConfigurationListener;
 
 import java.io.File;
+import java.io.IOException;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.security.Principal;
+import java.time.Duration;
+import java.time.format.DateTimeParseException;
+import java.util.Dictionary;
 import java.util.HashSet;
+import java.util.Hashtable;
 import java.util.List;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.DoubleUnaryOperator;
+import java.util.function.IntPredicate;
+import java.util.zip.Checksum;
 
 @RunWith(PaxExam.class)
 @ExamReactorStrategy(PerSuite.class)
@@ -209,7 +251,617 @@ public class WaterFrameworkOSGiTest extends KarafTestSupport {
     public void test012_testApplicationConfiguration() {
         OsgiApplicationConfiguration applicationConfiguration = new OsgiApplicationConfiguration();
         applicationConfiguration.start();
-        Assert.assertTrue(applicationConfiguration.getConfiguration().size() > 0);
+        try {
+            //starting again has no effect
+            applicationConfiguration.start();
+            Assert.assertTrue(applicationConfiguration.getConfiguration().size() > 0);
+            //properties are built once per configuration version
+            long version = applicationConfiguration.getConfigurationVersion();
+            Properties configuration = applicationConfiguration.getConfiguration();
+            if (version == applicationConfiguration.getConfigurationVersion())
+                Assert.assertSame(configuration, applicationConfiguration.getConfiguration());
+        } finally {
+            applicationConfiguration.stop();
+        }
+    }
+
+    /**
+     * Indexed lookup must return the same components, in the same order, of the framework scan
+     * and must see components registered after the index has been populated.
+     */
+    @Test
+    public void test013_testIndexedLookup() {
+        OsgiComponentRegistry componentRegistry = OsgiComponentRegistry.getInstance();
+        OSGiComponentFilterBuilder componentFilterBuilder = new OSGiComponentFilterBuilder();
+        ComponentFilter filter = componentFilterBuilder.createFilter("filter", "value");
+        List<String> scanned = componentRegistry.findComponents(ServiceInterface.class, null).stream().map(ServiceInterface::doThing).toList();
+        List<String> scannedFiltered = componentRegistry.findComponents(ServiceInterface.class, filter).stream().map(ServiceInterface::doThing).toList();
+        componentRegistry.enableIndexedLookup(bundleContext);
+        try {
+            Assert.assertTrue(componentRegistry.isIndexedLookupEnabled());
+            Assert.assertEquals(scanned, componentRegistry.findComponents(ServiceInterface.class, null).stream().map(ServiceInterface::doThing).toList());
+            Assert.assertEquals(scannedFiltered, componentRegistry.findComponents(ServiceInterface.class, filter).stream().map(ServiceInterface::doThing).toList());
+            Assert.assertEquals(scanned.get(0), componentRegistry.findComponent(ServiceInterface.class, null).doThing());
+            ComponentRegistration<ServiceInterface, String> registration = componentRegistry.registerComponent(ServiceInterface.class, new ServiceInterfaceImpl2(), ComponentConfigurationFactory.createNewComponentPropertyFactory().withPriority(10).build());
+            List<ServiceInterface> indexed = componentRegistry.findComponents(ServiceInterface.class, null);
+            Assert.assertEquals(scanned.size() + 1, indexed.size());
+            Assert.assertEquals(new ServiceInterfaceImpl2().doThing(), indexed.get(0).doThing());
+            componentRegistry.unregisterComponent(registration);
+            Assert.assertEquals(scanned, componentRegistry.findComponents(ServiceInterface.class, null).stream().map(ServiceInterface::doThing).toList());
+        } finally {
+            componentRegistry.disableIndexedLookup();
+        }
+        Assert.assertFalse(componentRegistry.isIndexedLookupEnabled());
+    }
+
+    /**
+     * Registrations made by a batch must be visible to other threads before the batch ends.
+     */
+    @Test
+    public void test014_testBatchRegistration() throws Exception {
+        OsgiComponentRegistry componentRegistry = OsgiComponentRegistry.getInstance();
+        int registered = componentRegistry.findComponents(ServiceInterface.class, null).size();
+        componentRegistry.enableIndexedLookup(bundleContext);
+        //number of components seen by another thread when the second component of the batch is registered
+        AtomicInteger seenByOtherThread = new AtomicInteger();
+        ServiceListener listener = event -> {
+            if (event.getType() == ServiceEvent.REGISTERED && Integer.valueOf(12).equals(event.getServiceReference().getProperty("it.water.component.priority"))) {
+                //the first registration has been fully notified at this point
+                CompletableFuture.runAsync(() -> seenByOtherThread.set(componentRegistry.findComponents(ServiceInterface.class, null).size())).join();
+            }
+        };
+        try {
+            //populating the index before the batch
+            Assert.assertEquals(registered, componentRegistry.findComponents(ServiceInterface.class, null).size());
+            List<OsgiComponentRegistrationRequest<?>> requests = List.of(
+                    new OsgiComponentRegistrationRequest<ServiceInterface>(ServiceInterface.class, new ServiceInterfaceImpl2(), ComponentConfigurationFactory.createNewComponentPropertyFactory().withPriority(11).build()),
+                    new OsgiComponentRegistrationRequest<ServiceInterface>(ServiceInterface.class, new ServiceInterfaceImpl2(), ComponentConfigurationFactory.createNewComponentPropertyFactory().withPriority(12).build()));
+            bundleContext.addServiceListener(listener, "(objectClass=" + ServiceInterface.class.getName() + ")");
+            List<ComponentRegistration<?, ?>> registrations = componentRegistry.registerComponents(requests);
+            bundleContext.removeServiceListener(listener);
+            Assert.assertTrue(seenByOtherThread.get() >= registered + 1);
+            Assert.assertEquals(2, registrations.size());
+            Assert.assertEquals(registered + 2, componentRegistry.findComponents(ServiceInterface.class, null).size());
+            registrations.forEach(componentRegistry::unregisterComponent);
+            Assert.assertEquals(registered, componentRegistry.findComponents(ServiceInterface.class, null).size());
+        } finally {
+            componentRegistry.disableIndexedLookup();
+        }
+    }
+
+    /**
+     * Lazy components are created on first lookup, prototype ones on every lookup.
+     */
+    @Test
+    public void test015_testLazyAndPrototypeRegistration() {
+        OsgiComponentRegistry componentRegistry = OsgiComponentRegistry.getInstance();
+        int registered = componentRegistry.findComponents(ServiceInterface.class, null).size();
+        AtomicInteger created = new AtomicInteger();
+        ComponentRegistration<ServiceInterface, Object> lazyRegistration = componentRegistry.registerLazyComponent(ServiceInterface.class, ServiceInterfaceImpl2.class, () -> {
+            created.incrementAndGet();
+            return new ServiceInterfaceImpl2();
+        }, ComponentConfigurationFactory.createNewComponentPropertyFactory().withPriority(13).build(), false);
+        Assert.assertEquals(0, created.get());
+        ServiceInterface lazyComponent = componentRegistry.findComponent(ServiceInterface.class, null);
+        Assert.assertSame(lazyComponent, componentRegistry.findComponent(ServiceInterface.class, null));
+        Assert.assertEquals(1, created.get());
+        Assert.assertNotNull(lazyRegistration.getComponent());
+        componentRegistry.unregisterComponent(lazyRegistration);
+        Assert.assertEquals(registered, componentRegistry.findComponents(ServiceInterface.class, null).size());
+        //unregistered components are no longer returned by their registration
+        Assert.assertNull(lazyRegistration.getComponent());
+
+        ComponentRegistration<ServiceInterface, Object> prototypeRegistration = componentRegistry.registerLazyComponent(ServiceInterface.class, ServiceInterfaceImpl2.class, ServiceInterfaceImpl2::new, ComponentConfigurationFactory.createNewComponentPropertyFactory().withPriority(13).build(), true);
+        ServiceInterface first = componentRegistry.findComponent(ServiceInterface.class, null);
+        ServiceInterface second = componentRegistry.findComponent(ServiceInterface.class, null);
+        Assert.assertNotSame(first, second);
+        Assert.assertEquals(new ServiceInterfaceImpl2().doThing(), first.doThing());
+        Assert.assertNotSame(prototypeRegistration.getComponent(), prototypeRegistration.getComponent());
+        componentRegistry.unregisterComponent(prototypeRegistration);
+        Assert.assertEquals(registered, componentRegistry.findComponents(ServiceInterface.class, null).size());
+    }
+
+    /**
+     * Many registrations of the same class must be removed one by one,
+     * unknown instances must not remove registrations of other instances.
+     */
+    @Test
+    public void test016_testMultipleRegistrationsOfSameClass() {
+        OsgiComponentRegistry componentRegistry = OsgiComponentRegistry.getInstance();
+        int registered = componentRegistry.findComponents(ServiceInterface.class, null).size();
+        ServiceInterfaceImpl2 firstComponent = new ServiceInterfaceImpl2();
+        ServiceInterfaceImpl2 secondComponent = new ServiceInterfaceImpl2();
+        componentRegistry.registerComponent(ServiceInterface.class, firstComponent, ComponentConfigurationFactory.createNewComponentPropertyFactory().withPriority(14).build());
+        ComponentRegistration<ServiceInterface, Object> secondRegistration = componentRegistry.registerComponent(ServiceInterface.class, secondComponent, ComponentConfigurationFactory.createNewComponentPropertyFactory().withPriority(15).build());
+        Assert.assertEquals(registered + 2, componentRegistry.findComponents(ServiceInterface.class, null).size());
+        Assert.assertFalse(componentRegistry.unregisterComponent(ServiceInterface.class, new ServiceInterfaceImpl2()));
+        Assert.assertEquals(registered + 2, componentRegistry.findComponents(ServiceInterface.class, null).size());
+        Assert.assertTrue(componentRegistry.unregisterComponent(ServiceInterface.class, firstComponent));
+        Assert.assertEquals(registered + 1, componentRegistry.findComponents(ServiceInterface.class, null).size());
+        Assert.assertFalse(componentRegistry.unregisterComponent(ServiceInterface.class, firstComponent));
+        Assert.assertTrue(componentRegistry.unregisterComponent(secondRegistration));
+        Assert.assertEquals(registered, componentRegistry.findComponents(ServiceInterface.class, null).size());
+        //classes without registrations are no longer referenced by the registry
+        ComponentRegistration<Runnable, Object> trackedRegistration = componentRegistry.registerComponent(Runnable.class, new TrackedComponent(), null);
+        Assert.assertTrue(componentRegistry.hasRegistrations(TrackedComponent.class));
+        Assert.assertTrue(componentRegistry.unregisterComponent(trackedRegistration));
+        Assert.assertFalse(componentRegistry.hasRegistrations(TrackedComponent.class));
+    }
+
+    /**
+     * Async lookup completes at once for registered components, on registration for missing ones
+     * and with a timeout if the component never shows up.
+     */
+    @Test
+    public void test017_testFindComponentAsync() throws Exception {
+        OsgiComponentRegistry componentRegistry = OsgiComponentRegistry.getInstance();
+        OSGiComponentFilterBuilder componentFilterBuilder = new OSGiComponentFilterBuilder();
+        CompletableFuture<ServiceInterface> registeredLookup = componentRegistry.findComponentAsync(ServiceInterface.class, null, Duration.ofSeconds(5));
+        Assert.assertTrue(registeredLookup.isDone());
+        Assert.assertNotNull(registeredLookup.get());
+
+        assertPendingLookupCompleted(componentRegistry);
+        //the index caches the empty result of the first lookup, completion must not depend on it
+        componentRegistry.enableIndexedLookup(bundleContext);
+        try {
+            assertPendingLookupCompleted(componentRegistry);
+        } finally {
+            componentRegistry.disableIndexedLookup();
+        }
+
+        CompletableFuture<ServiceInterface> missingLookup = componentRegistry.findComponentAsync(ServiceInterface.class, componentFilterBuilder.createFilter("filter", "missing"), Duration.ofMillis(100));
+        try {
+            missingLookup.get(5, TimeUnit.SECONDS);
+            Assert.fail("Lookup of a missing component must time out");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof TimeoutException);
+        }
+    }
+
+    private void assertPendingLookupCompleted(OsgiComponentRegistry componentRegistry) throws Exception {
+        OSGiComponentFilterBuilder componentFilterBuilder = new OSGiComponentFilterBuilder();
+        CompletableFuture<ServiceInterface> pendingLookup = componentRegistry.findComponentAsync(ServiceInterface.class, componentFilterBuilder.createFilter("filter", "async"), Duration.ofSeconds(5));
+        Assert.assertFalse(pendingLookup.isDone());
+        //dependent stages must not run on the registering thread, inside the framework event dispatch
+        CompletableFuture<Thread> completingThread = pendingLookup.thenApply(component -> Thread.currentThread());
+        Hashtable<String, Object> properties = new Hashtable<>();
+        properties.put("filter", "async");
+        ComponentRegistration<ServiceInterface, Object> registration = componentRegistry.registerComponent(ServiceInterface.class, new ServiceInterfaceImpl2(), ComponentConfigurationFactory.createNewComponentPropertyFactory().fromGenericDictionary(properties).withPriority(16).build());
+        try {
+            Assert.assertEquals(new ServiceInterfaceImpl2().doThing(), pendingLookup.get(5, TimeUnit.SECONDS).doThing());
+            Assert.assertNotSame(Thread.currentThread(), completingThread.get(5, TimeUnit.SECONDS));
+        } finally {
+            componentRegistry.unregisterComponent(registration);
+        }
+    }
+
+    /**
+     * Events of distinct components are delivered in registration order.
+     */
+    @Test
+    public void test018_testComponentEventsOrdering() throws Exception {
+        OsgiComponentRegistry componentRegistry = OsgiComponentRegistry.getInstance();
+        OSGiComponentFilterBuilder componentFilterBuilder = new OSGiComponentFilterBuilder();
+        BlockingQueue<OsgiComponentEvent<ServiceInterface>> events = new LinkedBlockingQueue<>();
+        AtomicReference<Flow.Subscription> subscription = new AtomicReference<>();
+        componentRegistry.getComponentEventPublisher(ServiceInterface.class, componentFilterBuilder.createFilter("filter", "events")).subscribe(new Flow.Subscriber<>() {
+            @Override
+            public void onSubscribe(Flow.Subscription s) {
+                subscription.set(s);
+                s.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(OsgiComponentEvent<ServiceInterface> item) {
+                events.add(item);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                Assert.fail(throwable.getMessage());
+            }
+
+            @Override
+            public void onComplete() {
+                //never completes
+            }
+        });
+        Hashtable<String, Object> properties = new Hashtable<>();
+        properties.put("filter", "events");
+        ComponentRegistration<ServiceInterface, Object> firstRegistration = componentRegistry.registerComponent(ServiceInterface.class, new ServiceInterfaceImpl2(), ComponentConfigurationFactory.createNewComponentPropertyFactory().fromGenericDictionary(properties).withPriority(17).build());
+        ComponentRegistration<ServiceInterface, Object> secondRegistration = componentRegistry.registerComponent(ServiceInterface.class, new ServiceInterfaceImpl2(), ComponentConfigurationFactory.createNewComponentPropertyFactory().fromGenericDictionary(properties).withPriority(18).build());
+        try {
+            OsgiComponentEvent<ServiceInterface> firstAdded = events.poll(5, TimeUnit.SECONDS);
+            OsgiComponentEvent<ServiceInterface> secondAdded = events.poll(5, TimeUnit.SECONDS);
+            Assert.assertNotNull(firstAdded);
+            Assert.assertNotNull(secondAdded);
+            Assert.assertEquals(OsgiComponentEvent.Type.ADDED, firstAdded.getType());
+            Assert.assertEquals(OsgiComponentEvent.Type.ADDED, secondAdded.getType());
+            Assert.assertTrue(firstAdded.getServiceId() < secondAdded.getServiceId());
+            Assert.assertNotNull(firstAdded.getComponent());
+            componentRegistry.unregisterComponent(firstRegistration);
+            componentRegistry.unregisterComponent(secondRegistration);
+            OsgiComponentEvent<ServiceInterface> firstRemoved = events.poll(5, TimeUnit.SECONDS);
+            OsgiComponentEvent<ServiceInterface> secondRemoved = events.poll(5, TimeUnit.SECONDS);
+            Assert.assertNotNull(firstRemoved);
+            Assert.assertNotNull(secondRemoved);
+            Assert.assertEquals(OsgiComponentEvent.Type.REMOVED, firstRemoved.getType());
+            Assert.assertEquals(OsgiComponentEvent.Type.REMOVED, secondRemoved.getType());
+            Assert.assertEquals(firstAdded.getServiceId(), firstRemoved.getServiceId());
+            Assert.assertEquals(secondAdded.getServiceId(), secondRemoved.getServiceId());
+            Assert.assertNull(firstRemoved.getComponent());
+        } finally {
+            subscription.get().cancel();
+        }
+    }
+
+    /**
+     * Generated proxies must behave as java.lang.reflect.Proxy ones and follow the service swaps of their interceptor.
+     */
+    @Test
+    public void test019_testGeneratedProxy() {
+        ServiceInterfaceImpl2 service = new ServiceInterfaceImpl2();
+        OsgiServiceInterceptor<ServiceInterface> interceptor = new OsgiServiceInterceptor<>(service, OsgiComponentRegistry.getInstance());
+        Object generatedProxy = OsgiProxyGenerator.newProxyInstance(new Class[]{ServiceInterface.class}, interceptor);
+        Object jdkProxy = Proxy.newProxyInstance(ServiceInterface.class.getClassLoader(), new Class[]{ServiceInterface.class}, interceptor);
+        Assert.assertTrue(generatedProxy instanceof ServiceInterface);
+        Assert.assertTrue(generatedProxy instanceof OsgiGeneratedServiceProxy);
+        Assert.assertSame(interceptor, OSGiUtil.getServiceInterceptor(generatedProxy));
+        Assert.assertSame(interceptor, OSGiUtil.getServiceInterceptor(jdkProxy));
+        Assert.assertEquals(((ServiceInterface) jdkProxy).doThing(), ((ServiceInterface) generatedProxy).doThing());
+        Assert.assertEquals(service.hashCode(), generatedProxy.hashCode());
+        Assert.assertEquals(service.toString(), generatedProxy.toString());
+        //the proxy dispatches to the current service of the interceptor
+        ServiceInterfaceImpl2 swappedService = new ServiceInterfaceImpl2();
+        interceptor.setService(swappedService);
+        Assert.assertEquals(swappedService.hashCode(), generatedProxy.hashCode());
+        Assert.assertEquals(swappedService.doThing(), ((ServiceInterface) generatedProxy).doThing());
+    }
+
+    /**
+     * Passthrough is decided from the service class when the service is registered and advertised as a service property.
+     */
+    @Test
+    public void test020_testPassthroughServices() throws Exception {
+        Assert.assertFalse(OsgiServiceInterceptor.isInterceptable(PlainPassthroughService.class));
+        Assert.assertTrue(OsgiServiceInterceptor.isInterceptable(ParameterAnnotatedPassthroughService.class));
+        //the plan keeps the annotations the interceptor chain is bound to
+        Method echo = PassthroughService.class.getMethod("echo", String.class);
+        Assert.assertTrue(InvocationPlan.forMethod(PlainPassthroughService.class, echo).isNoOp());
+        InvocationPlan plan = InvocationPlan.forMethod(ParameterAnnotatedPassthroughService.class, echo);
+        Assert.assertFalse(plan.isNoOp());
+        Assert.assertEquals(1, plan.getBindings().size());
+        Assert.assertEquals(PassthroughBinding.class, plan.getBindings().get(0).annotationType());
+        Assert.assertSame(plan, InvocationPlan.forMethod(ParameterAnnotatedPassthroughService.class, echo));
+        OsgiComponentRegistry componentRegistry = OsgiComponentRegistry.getInstance();
+        boolean passthroughEnabled = OSGiUtil.isPassthroughEnabled(bundleContext.getBundle());
+        PlainPassthroughService component = new PlainPassthroughService();
+        ComponentRegistration<PassthroughService, ServiceRegistration<PassthroughService>> registration = componentRegistry.registerComponent(PassthroughService.class, component, ComponentConfigurationFactory.createNewComponentPropertyFactory().build());
+        try {
+            Assert.assertEquals(passthroughEnabled, OSGiUtil.isPassthroughService(registration.getRegistration().getReference()));
+            PassthroughService found = componentRegistry.findComponent(PassthroughService.class, null);
+            Assert.assertEquals("value", found.echo("value"));
+            Assert.assertEquals(passthroughEnabled, found == component);
+        } finally {
+            componentRegistry.unregisterComponent(registration);
+        }
+    }
+
+    /**
+     * Local changes are merged into the configuration, changes made through ConfigurationAdmin are kept.
+     */
+    @Test
+    public void test021_testLocalChangesKeepExternalEdits() throws Exception {
+        ApplicationProperties applicationProperties = getOsgiService(ApplicationProperties.class);
+        ConfigurationAdmin configurationAdmin = getOsgiService(ConfigurationAdmin.class);
+        Configuration configuration = configurationAdmin.listConfigurations("(service.pid=it.water.application)")[0];
+        Dictionary<String, Object> externalProperties = configuration.getProperties();
+        externalProperties.put("it.water.test.external", "external");
+        configuration.update(externalProperties);
+        Properties localProperties = new Properties();
+        localProperties.put("it.water.test.local", "local");
+        applicationProperties.loadProperties(localProperties);
+        Assert.assertEquals("local", applicationProperties.getProperty("it.water.test.local"));
+        Dictionary<String, Object> written = waitForConfigurationProperty(configurationAdmin, "it.water.test.local");
+        Assert.assertEquals("local", written.get("it.water.test.local"));
+        Assert.assertEquals("external", written.get("it.water.test.external"));
+        applicationProperties.unloadProperties(localProperties);
+        Assert.assertFalse(applicationProperties.containsKey("it.water.test.local"));
+    }
+
+    /**
+     * Properties loaded within the write delay must be written with a single configuration update.
+     * Only updates carrying the loaded properties are counted, pending writes of previous tests may still land.
+     */
+    @Test
+    public void test022_testCoalescedPropertyWrites() throws Exception {
+        ApplicationProperties applicationProperties = getOsgiService(ApplicationProperties.class);
+        ConfigurationAdmin configurationAdmin = getOsgiService(ConfigurationAdmin.class);
+        AtomicInteger updates = new AtomicInteger();
+        ConfigurationListener listener = event -> {
+            if (event.getType() == ConfigurationEvent.CM_UPDATED && "it.water.application".equals(event.getPid()) && hasConfigurationProperty(configurationAdmin, "it.water.test.coalesced.0"))
+                updates.incrementAndGet();
+        };
+        ServiceRegistration<ConfigurationListener> listenerRegistration = bundleContext.registerService(ConfigurationListener.class, listener, null);
+        Properties loadedProperties = new Properties();
+        try {
+            for (int i = 0; i < 3; i++) {
+                Properties props = new Properties();
+                props.put("it.water.test.coalesced." + i, String.valueOf(i));
+                loadedProperties.putAll(props);
+                applicationProperties.loadProperties(props);
+            }
+            Dictionary<String, Object> written = waitForConfigurationProperty(configurationAdmin, "it.water.test.coalesced.2");
+            Assert.assertEquals("0", written.get("it.water.test.coalesced.0"));
+            Assert.assertEquals("1", written.get("it.water.test.coalesced.1"));
+            Assert.assertEquals("2", written.get("it.water.test.coalesced.2"));
+            //configuration events are asynchronous
+            long deadline = System.currentTimeMillis() + 5000;
+            while (updates.get() == 0 && System.currentTimeMillis() < deadline)
+                Thread.sleep(50);
+            Assert.assertTrue(updates.get() >= 1);
+            Assert.assertTrue(updates.get() <= 1);
+        } finally {
+            listenerRegistration.unregister();
+            applicationProperties.unloadProperties(loadedProperties);
+        }
+    }
+
+    /**
+     * Stopping application properties must write pending changes without waiting for the delay.
+     */
+    @Test
+    public void test023_testPendingWritesFlushedOnStop() throws Exception {
+        ConfigurationAdmin configurationAdmin = getOsgiService(ConfigurationAdmin.class);
+        OsgiApplicationProperties applicationProperties = new OsgiApplicationProperties();
+        applicationProperties.setup();
+        Properties props = new Properties();
+        props.put("it.water.test.flushed", "flushed");
+        applicationProperties.loadProperties(props);
+        applicationProperties.stop();
+        Dictionary<String, Object> written = configurationAdmin.listConfigurations("(service.pid=it.water.application)")[0].getProperties();
+        Assert.assertEquals("flushed", written.get("it.water.test.flushed"));
+        //changes after stop are written immediately
+        applicationProperties.unloadProperties(props);
+        written = configurationAdmin.listConfigurations("(service.pid=it.water.application)")[0].getProperties();
+        Assert.assertNull(written.get("it.water.test.flushed"));
+    }
+
+    /**
+     * Typed accessors convert the resolved value, invalid values are reported instead of falling back to the default.
+     */
+    @Test
+    public void test024_testTypedProperties() {
+        OsgiApplicationProperties applicationProperties = new OsgiApplicationProperties();
+        applicationProperties.setup();
+        Properties props = new Properties();
+        props.put("it.water.test.int", "42");
+        props.put("it.water.test.long", "4200000000");
+        props.put("it.water.test.boolean", "true");
+        props.put("it.water.test.duration", "PT30S");
+        props.put("it.water.test.list", "a, b,,c");
+        props.put("it.water.test.invalid", "not-a-value");
+        try {
+            applicationProperties.loadProperties(props);
+            Assert.assertEquals(42, applicationProperties.getInt("it.water.test.int", 0));
+            Assert.assertEquals(7, applicationProperties.getInt("it.water.test.missing", 7));
+            Assert.assertEquals(4200000000L, applicationProperties.getLong("it.water.test.long", 0));
+            Assert.assertTrue(applicationProperties.getBoolean("it.water.test.boolean", false));
+            Assert.assertTrue(applicationProperties.getBoolean("it.water.test.missing", true));
+            Assert.assertEquals(Duration.ofSeconds(30), applicationProperties.getDuration("it.water.test.duration", Duration.ZERO));
+            Assert.assertEquals(List.of("a", "b", "c"), applicationProperties.getList("it.water.test.list"));
+            Assert.assertTrue(applicationProperties.getList("it.water.test.missing").isEmpty());
+            try {
+                applicationProperties.getInt("it.water.test.invalid", 0);
+                Assert.fail("Invalid int value must be reported");
+            } catch (NumberFormatException e) {
+                //expected
+            }
+            try {
+                applicationProperties.getLong("it.water.test.invalid", 0);
+                Assert.fail("Invalid long value must be reported");
+            } catch (NumberFormatException e) {
+                //expected
+            }
+            try {
+                applicationProperties.getDuration("it.water.test.invalid", Duration.ZERO);
+                Assert.fail("Invalid duration value must be reported");
+            } catch (DateTimeParseException e) {
+                //expected
+            }
+            Assert.assertFalse(applicationProperties.getBoolean("it.water.test.invalid", true));
+            Assert.assertEquals(List.of("not-a-value"), applicationProperties.getList("it.water.test.invalid"));
+        } finally {
+            applicationProperties.unloadProperties(props);
+            applicationProperties.stop();
+        }
+    }
+
+    /**
+     * Property handles follow local changes, keeping the last valid value.
+     */
+    @Test
+    public void test025_testPropertyHandle() {
+        OsgiApplicationProperties applicationProperties = new OsgiApplicationProperties();
+        applicationProperties.setup();
+        Properties props = new Properties();
+        try {
+            PropertyHandle<Integer> handle = applicationProperties.getPropertyHandle("it.water.test.handle", PropertyParsers.INTEGER, 1);
+            Assert.assertEquals("it.water.test.handle", handle.getKey());
+            Assert.assertEquals(1, (int) handle.get());
+            props.put("it.water.test.handle", "2");
+            applicationProperties.loadProperties(props);
+            Assert.assertEquals(2, (int) handle.get());
+            props.put("it.water.test.handle", "not-a-number");
+            applicationProperties.loadProperties(props);
+            Assert.assertEquals(2, (int) handle.get());
+            applicationProperties.unloadProperties(props);
+            Assert.assertEquals(1, (int) handle.get());
+        } finally {
+            applicationProperties.stop();
+        }
+    }
+
+    /**
+     * Configuration updates replace the snapshot, incrementing its version.
+     */
+    @Test
+    public void test026_testConfigurationVersion() throws Exception {
+        OsgiApplicationConfiguration applicationConfiguration = new OsgiApplicationConfiguration();
+        applicationConfiguration.start();
+        ConfigurationAdmin configurationAdmin = getOsgiService(ConfigurationAdmin.class);
+        Configuration configuration = configurationAdmin.listConfigurations("(service.pid=it.water.application)")[0];
+        Dictionary<String, Object> properties = configuration.getProperties();
+        try {
+            long version = applicationConfiguration.getConfigurationVersion();
+            Assert.assertTrue(version > 0);
+            Properties previous = applicationConfiguration.getConfiguration();
+            properties.put("it.water.test.version", "updated");
+            configuration.update(properties);
+            //ManagedService updates are asynchronous
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!applicationConfiguration.getConfiguration().containsKey("it.water.test.version") && System.currentTimeMillis() < deadline)
+                Thread.sleep(50);
+            Assert.assertEquals("updated", applicationConfiguration.getConfiguration().get("it.water.test.version"));
+            Assert.assertTrue(applicationConfiguration.getConfigurationVersion() > version);
+            //a new version gets new properties, the previous ones are left untouched
+            Assert.assertNotSame(previous, applicationConfiguration.getConfiguration());
+            Assert.assertFalse(previous.containsKey("it.water.test.version"));
+        } finally {
+            applicationConfiguration.stop();
+            properties.remove("it.water.test.version");
+            configuration.update(properties);
+        }
+    }
+
+    /**
+     * Generated proxies must link and invoke methods with primitive, wide, array and void signatures,
+     * types which cannot be linked from the proxy bundle must be rejected before the class is defined.
+     */
+    @Test
+    public void test027_testGeneratedProxySignatures() throws Exception {
+        SignaturesService service = new SignaturesService();
+        OsgiServiceInterceptor<SignaturesService> interceptor = new OsgiServiceInterceptor<>(service, OsgiComponentRegistry.getInstance());
+        //the generated class is verified by the jvm when it is defined
+        Object proxy = OsgiProxyGenerator.newProxyInstance(new Class[]{Service.class, Checksum.class, DoubleUnaryOperator.class, IntPredicate.class, Callable.class}, interceptor);
+        Checksum checksum = (Checksum) proxy;
+        checksum.update(new byte[]{1, 2, 3}, 0, 3);
+        checksum.update(4);
+        Assert.assertEquals(10L, checksum.getValue());
+        checksum.reset();
+        Assert.assertEquals(0L, checksum.getValue());
+        Assert.assertEquals(5.0d, ((DoubleUnaryOperator) proxy).applyAsDouble(2.5d), 0d);
+        Assert.assertEquals(6.0d, ((DoubleUnaryOperator) proxy).andThen(value -> value + 1).applyAsDouble(2.5d), 0d);
+        Assert.assertTrue(((IntPredicate) proxy).test(4));
+        Assert.assertFalse(((IntPredicate) proxy).test(3));
+        try {
+            ((Callable<?>) proxy).call();
+            Assert.fail("Checked exceptions must reach the caller");
+        } catch (IOException e) {
+            Assert.assertEquals("call", e.getMessage());
+        }
+        try {
+            OsgiProxyGenerator.defineProxyClass(new Class[]{HiddenSignatureService.class});
+            Assert.fail("Types not linkable from the proxy bundle must be rejected");
+        } catch (IllegalArgumentException e) {
+            Assert.assertNotNull(e.getMessage());
+        }
+    }
+
+    private boolean hasConfigurationProperty(ConfigurationAdmin configurationAdmin, String key) {
+        try {
+            return configurationAdmin.listConfigurations("(service.pid=it.water.application)")[0].getProperties().get(key) != null;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private Dictionary<String, Object> waitForConfigurationProperty(ConfigurationAdmin configurationAdmin, String key) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        Dictionary<String, Object> properties = configurationAdmin.listConfigurations("(service.pid=it.water.application)")[0].getProperties();
+        while (properties.get(key) == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+            properties = configurationAdmin.listConfigurations("(service.pid=it.water.application)")[0].getProperties();
+        }
+        return properties;
+    }
+
+    public static class TrackedComponent implements Runnable {
+        @Override
+        public void run() {
+            //nothing to do
+        }
+    }
+
+    public interface PassthroughService extends Service {
+        String echo(String value);
+    }
+
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target(ElementType.PARAMETER)
+    public @interface PassthroughBinding {
+    }
+
+    public static class PlainPassthroughService implements PassthroughService {
+        @Override
+        public String echo(String value) {
+            return value;
+        }
+    }
+
+    public static class ParameterAnnotatedPassthroughService implements PassthroughService {
+        @Override
+        public String echo(@PassthroughBinding String value) {
+            return value;
+        }
+    }
+
+    public static class SignaturesService implements Service, Checksum, DoubleUnaryOperator, IntPredicate, Callable<Object> {
+        private long value;
+
+        @Override
+        public void update(int b) {
+            value += b;
+        }
+
+        @Override
+        public void update(byte[] b, int off, int len) {
+            for (int i = off; i < off + len; i++) {
+                value += b[i];
+            }
+        }
+
+        @Override
+        public long getValue() {
+            return value;
+        }
+
+        @Override
+        public void reset() {
+            value = 0;
+        }
+
+        @Override
+        public double applyAsDouble(double operand) {
+            return operand * 2;
+        }
+
+        @Override
+        public boolean test(int value) {
+            return value % 2 == 0;
+        }
+
+        @Override
+        public Object call() throws Exception {
+            throw new IOException("call");
+        }
+    }
+
+    public interface HiddenSignatureService extends Service {
+        void accept(HiddenType value);
+    }
+
+    static class HiddenType {
     }
 
 }
@@ -16,20 +16,36 @@
 package it.water.implementation.spring.bundle;
 
 import it.water.core.api.bundle.ApplicationProperties;
+import it.water.implementation.core.bundle.PropertyHandle;
+import it.water.implementation.core.bundle.PropertyHandles;
+import it.water.implementation.core.bundle.ResolvedPropertyCache;
+import it.water.implementation.core.bundle.TypedApplicationProperties;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEvent;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.core.env.Environment;
 
 import java.io.File;
 import java.util.Properties;
+import java.util.Set;
+import java.util.function.Function;
 
 @Configuration
-public class SpringApplicationProperties implements ApplicationProperties {
+public class SpringApplicationProperties implements ApplicationProperties, TypedApplicationProperties {
+    //events published by spring cloud when the environment changes at runtime, matched by name since spring cloud is optional
+    private static final Set<String> ENVIRONMENT_CHANGE_EVENTS = Set.of("org.springframework.cloud.context.environment.EnvironmentChangeEvent", "org.springframework.cloud.context.scope.refresh.RefreshScopeRefreshedEvent");
+
     private Environment environment;
+    private ResolvedPropertyCache resolvedProperties;
+    //resolved values and handles are refreshed on each context refresh or environment change
+    private final PropertyHandles propertyHandles = new PropertyHandles();
 
     @Autowired
     public SpringApplicationProperties(Environment environment) {
         this.environment = environment;
+        this.resolvedProperties = new ResolvedPropertyCache(environment::getProperty, rawValue -> resolvePropertyValue(rawValue.toString()));
     }
 
     @Override
@@ -39,14 +55,40 @@ public class SpringApplicationProperties implements ApplicationProperties {
 
     @Override
     public Object getProperty(String key) {
-        return resolvePropertyValue(environment.getProperty(key));
+        return resolvedProperties.get(key);
     }
 
     @Override
     public boolean containsKey(String key) {
+        resolvedProperties.propertyRead(key);
         return environment.containsProperty(key);
     }
 
+    @Override
+    public <T> PropertyHandle<T> getPropertyHandle(String key, Function<Object, T> parser, T defaultValue) {
+        return propertyHandles.create(this, key, parser, defaultValue);
+    }
+
+    @Override
+    public <T> T getParsedProperty(String key, Function<Object, T> parser) {
+        return resolvedProperties.get(key, parser);
+    }
+
+    @EventListener
+    public void applicationEvent(ApplicationEvent event) {
+        if (event instanceof ContextRefreshedEvent || ENVIRONMENT_CHANGE_EVENTS.contains(event.getClass().getName()))
+            this.refreshProperties();
+    }
+
+    /**
+     * Resolves again properties and handles from the environment, to be invoked after changing property sources
+     * outside a context refresh or a spring cloud environment change.
+     */
+    public void refreshProperties() {
+        resolvedProperties.clear();
+        propertyHandles.refresh();
+    }
+
     @Override
     public void loadProperties(File file) {
         throw new UnsupportedOperationException();
@@ -19,6 +19,7 @@ package it.water.implementation.spring.interceptors;
 import it.water.core.api.registry.ComponentRegistry;
 import it.water.core.api.service.Service;
 import it.water.core.interceptors.WaterAbstractInterceptor;
+import it.water.implementation.core.interceptors.InvocationPlan;
 import lombok.Setter;
 import org.aspectj.lang.JoinPoint;
 import org.aspectj.lang.annotation.*;
@@ -53,6 +54,8 @@ public class SpringServiceInterceptor extends WaterAbstractInterceptor<Service>
             Method method = MethodSignature.class.cast(joinPoint.getSignature()).getMethod();
             Object[] args = joinPoint.getArgs();
             Service target = (Service) joinPoint.getTarget();
+            if (InvocationPlan.forMethod(target.getClass(), method).isNoOp())
+                return;
             //setting original object before executing interception
             this.setService(target);
             this.executeInterceptorBeforeMethod(target, method, args);
@@ -72,6 +75,8 @@ public class SpringServiceInterceptor extends WaterAbstractInterceptor<Service>
             Method method = MethodSignature.class.cast(joinPoint.getSignature()).getMethod();
             Object[] args = joinPoint.getArgs();
             Service target = (Service) joinPoint.getTarget();
+            if (InvocationPlan.forMethod(target.getClass(), method).isNoOp())
+                return;
             //setting original object before executing interception
             this.setService(target);
             this.executeInterceptorAfterMethod(target, method, args, result);
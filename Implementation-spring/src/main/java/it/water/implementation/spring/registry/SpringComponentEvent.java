@@ -0,0 +1,67 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.implementation.spring.registry;
+
+import it.water.implementation.core.registry.ComponentEvent;
+
+import java.util.Properties;
+
+
+/**
+ * @Author Aristide Cittadino
+ * Change of a component published by SpringComponentRegistry.
+ * Events are keyed by bean name: ADDED and MODIFIED can be handled as upserts, REMOVED as deletion.
+ */
+public class SpringComponentEvent<T> extends ComponentEvent<T> {
+    private final String beanName;
+    private final T component;
+    private final Properties properties;
+
+    SpringComponentEvent(Type type, String beanName, T component, Properties properties) {
+        super(type);
+        this.beanName = beanName;
+        this.component = component;
+        this.properties = properties;
+    }
+
+    @Override
+    protected SpringComponentEvent<T> withType(Type newType) {
+        return new SpringComponentEvent<>(newType, beanName, component, properties);
+    }
+
+    @Override
+    public Object getKey() {
+        return beanName;
+    }
+
+    public String getBeanName() {
+        return beanName;
+    }
+
+    /**
+     * @return the component, for REMOVED events the instance which has been removed
+     */
+    @Override
+    public T getComponent() {
+        return component;
+    }
+
+    @Override
+    public Properties getProperties() {
+        return properties;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2024 Aristide Cittadino
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License")
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package it.water.implementation.spring.registry;
+
+import it.water.core.api.registry.filter.ComponentFilter;
+import it.water.implementation.core.registry.ComponentEventSubscription;
+
+import java.util.Collection;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+
+
+/**
+ * @Author Aristide Cittadino
+ * Subscription to the component events of a type, fed by the bean registration path of SpringComponentRegistry.
+ * Events are conflated by bean name.
+ */
+class SpringComponentEventSubscription<T> extends ComponentEventSubscription<T, SpringComponentEvent<T>> {
+    private final Class<T> componentClass;
+    private final ComponentFilter filter;
+    //active subscriptions of the registry, this subscription removes itself when cancelled
+    private final Collection<SpringComponentEventSubscription<?>> subscriptions;
+
+    SpringComponentEventSubscription(Flow.Subscriber<? super SpringComponentEvent<T>> subscriber, Class<T> componentClass, ComponentFilter filter, Executor executor, int bufferSize, Collection<SpringComponentEventSubscription<?>> subscriptions) {
+        super(subscriber, executor, bufferSize);
+        this.componentClass = componentClass;
+        this.filter = filter;
+        this.subscriptions = subscriptions;
+    }
+
+    /**
+     * Publishes the event if the component matches the subscribed type and filter.
+     */
+    void offer(SpringComponentEvent.Type type, String beanName, Object component, Properties properties) {
+        if (isCancelled() || !componentClass.isInstance(component) || (filter != null && !filter.matches(properties)))
+            return;
+        publish(new SpringComponentEvent<>(type, beanName, componentClass.cast(component), properties));
+    }
+
+    @Override
+    protected void onCancel() {
+        subscriptions.remove(this);
+    }
+}
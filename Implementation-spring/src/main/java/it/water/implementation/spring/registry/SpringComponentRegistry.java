@@ -17,6 +17,7 @@
 
 package it.water.implementation.spring.registry;
 
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -25,6 +26,13 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.Properties;
 import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -45,7 +53,6 @@ import it.water.core.api.service.BaseEntitySystemApi;
 import it.water.core.registry.AbstractComponentRegistry;
 import it.water.core.registry.model.exception.NoComponentRegistryFoundException;
 import it.water.implementation.spring.util.filter.SpringComponentFilterBuilder;
-import lombok.Setter;
 
 
 /**
@@ -54,10 +61,15 @@ import lombok.Setter;
  */
 public class SpringComponentRegistry extends AbstractComponentRegistry {
     private Logger log = LoggerFactory.getLogger(SpringComponentRegistry.class);
-    @Setter
     private ApplicationContext applicationContext;
     private ConfigurableListableBeanFactory configurableBeanFactory;
     public static final SpringComponentFilterBuilder componentFilterBuilder = new SpringComponentFilterBuilder();
+    //entity class name -> bean name of the related system api / repository
+    private final Map<String, String> entitySystemApiBeans = new ConcurrentHashMap<>();
+    private final Map<String, String> entityRepositoryBeans = new ConcurrentHashMap<>();
+    //async lookups waiting for a matching bean to be registered
+    private final List<PendingLookup<?>> pendingLookups = new CopyOnWriteArrayList<>();
+    private final List<SpringComponentEventSubscription<?>> eventSubscriptions = new CopyOnWriteArrayList<>();
 
     public SpringComponentRegistry(ConfigurableListableBeanFactory configurableBeanFactory) {
         this.configurableBeanFactory = configurableBeanFactory;
@@ -82,6 +94,77 @@ public class SpringComponentRegistry extends AbstractComponentRegistry {
         throw new NoComponentRegistryFoundException("No components found for :" + componentClass.getName() + " with filter: " + filter);
     }
 
+    /**
+     * Returns a future completed with the component with the highest priority as soon as it is available.
+     * If the component is not registered yet, the future is completed when a matching bean is registered through this registry.
+     *
+     * @param componentClass component class
+     * @param filter         component filter, can be null
+     * @param timeout        max waiting time, null to wait indefinitely
+     * @return future completed with the component, or exceptionally with a TimeoutException
+     */
+    public <T> CompletableFuture<T> findComponentAsync(Class<T> componentClass, ComponentFilter filter, Duration timeout) {
+        PendingLookup<T> lookup = new PendingLookup<>(componentClass, filter);
+        //lookup is added before the first attempt, so registrations in the meanwhile are not lost
+        pendingLookups.add(lookup);
+        lookup.future.whenComplete((component, error) -> pendingLookups.remove(lookup));
+        if (timeout != null)
+            lookup.future.orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        tryCompleteLookup(lookup);
+        return lookup.future;
+    }
+
+    /**
+     * Returns a publisher of the changes of the components of the given type, using the default buffer size.
+     * Each subscriber receives the already registered components as ADDED, then every following change.
+     *
+     * @param componentClass component class
+     * @param filter         component filter, can be null
+     * @return publisher of component events
+     */
+    public <T> Flow.Publisher<SpringComponentEvent<T>> getComponentEventPublisher(Class<T> componentClass, ComponentFilter filter) {
+        return getComponentEventPublisher(componentClass, filter, Flow.defaultBufferSize());
+    }
+
+    /**
+     * @param componentClass component class
+     * @param filter         component filter, can be null
+     * @param bufferSize     max number of distinct components pending for each subscriber
+     * @return publisher of component events
+     */
+    public <T> Flow.Publisher<SpringComponentEvent<T>> getComponentEventPublisher(Class<T> componentClass, ComponentFilter filter, int bufferSize) {
+        if (bufferSize <= 0)
+            throw new IllegalArgumentException("Buffer size must be positive");
+        return subscriber -> {
+            SpringComponentEventSubscription<T> subscription = new SpringComponentEventSubscription<>(subscriber, componentClass, filter, ForkJoinPool.commonPool(), bufferSize, eventSubscriptions);
+            subscriber.onSubscribe(subscription);
+            eventSubscriptions.add(subscription);
+            //beans are available only once the context is available
+            if (applicationContext != null)
+                applicationContext.getBeansOfType(componentClass).forEach((beanName, bean) -> subscription.offer(SpringComponentEvent.Type.ADDED, beanName, bean, getBeanProperties(beanName)));
+        };
+    }
+
+    private void publishComponentEvent(SpringComponentEvent.Type type, String beanName, Object component, Properties properties) {
+        eventSubscriptions.forEach(subscription -> subscription.offer(type, beanName, component, properties));
+    }
+
+    private <T> void tryCompleteLookup(PendingLookup<T> lookup) {
+        //beans can be resolved only once the context is available
+        if (lookup.future.isDone() || applicationContext == null)
+            return;
+        List<T> components = findComponents(lookup.componentClass, lookup.filter);
+        if (!components.isEmpty())
+            lookup.future.complete(components.get(0));
+    }
+
+    private void completePendingLookups(Class<?> registeredClass, Object component, Properties properties) {
+        pendingLookups.stream()
+                .filter(lookup -> lookup.componentClass.isAssignableFrom(registeredClass) || lookup.componentClass.isInstance(component))
+                .filter(lookup -> lookup.filter == null || lookup.filter.matches(properties))
+                .forEach(this::tryCompleteLookup);
+    }
+
     @SuppressWarnings("unchecked")
     @Override
     public <T, K> ComponentRegistration<T, K> registerComponent(Class<? extends T> componentClass, T component, ComponentConfiguration configuration) {
@@ -92,9 +175,18 @@ public class SpringComponentRegistry extends AbstractComponentRegistry {
                 .setScope(BeanDefinition.SCOPE_SINGLETON);
         beanDefinitionBuilder.getRawBeanDefinition().setInstanceSupplier(() -> component);
         beanDefinitionBuilder.setPrimary(configuration.isPrimary());
+        boolean replacing = beanDefinitionRegistry.containsBeanDefinition(beanName);
         //Adding all configured bean properties to the bean definition
         configuration.getConfiguration().forEach((name, value) -> beanDefinitionBuilder.addPropertyValue(name.toString(), value));
         beanDefinitionRegistry.registerBeanDefinition(beanName, beanDefinitionBuilder.getBeanDefinition());
+        indexEntityComponent(component, beanName);
+        if (!pendingLookups.isEmpty())
+            completePendingLookups(componentClass, component, configuration.getConfiguration());
+        if (!eventSubscriptions.isEmpty()) {
+            //publishing the bean as seen by other components, once the context is available
+            Object bean = (applicationContext != null) ? applicationContext.getBean(beanName) : component;
+            publishComponentEvent(replacing ? SpringComponentEvent.Type.MODIFIED : SpringComponentEvent.Type.ADDED, beanName, bean, configuration.getConfiguration());
+        }
         ComponentRegistration<T, String> registration = new SpringComponentRegistration<>(componentClass, beanName, component);
         return (ComponentRegistration<T, K>) registration;
     }
@@ -129,33 +221,69 @@ public class SpringComponentRegistry extends AbstractComponentRegistry {
     @SuppressWarnings({ "unchecked", "rawtypes" })
     @Override
     public <T extends BaseEntitySystemApi> T findEntitySystemApi(String entityClassName) {
-        Map<String, BaseEntitySystemApi> services = applicationContext.getBeansOfType(BaseEntitySystemApi.class);
-        Optional<BaseEntitySystemApi> optService = services.values().stream().filter(service -> service.getEntityType().getName().equals(entityClassName)).findAny();
-        if (optService.isPresent()) {
-            return (T) optService.get();
-        }
-        return null;
+        return (T) findEntityComponent(entitySystemApiBeans, BaseEntitySystemApi.class, entityClassName, service -> service.getEntityType().getName().equals(entityClassName));
     }
 
     @SuppressWarnings({ "unchecked", "rawtypes" })
     @Override
     public <T extends BaseRepository> T findEntityRepository(String entityClassName) {
-        Map<String, BaseRepository> services = applicationContext.getBeansOfType(BaseRepository.class);
-        Optional<BaseRepository> optService = services.values().stream().filter(service -> service.getEntityType().getName().equals(entityClassName)).findAny();
+        return (T) findEntityComponent(entityRepositoryBeans, BaseRepository.class, entityClassName, service -> service.getEntityType().getName().equals(entityClassName));
+    }
+
+    /**
+     * Looks for the entity component inside the index, scanning all beans of the given type only when missing.
+     * Beans not registered through this registry are indexed the first time they are found.
+     */
+    private <T> T findEntityComponent(Map<String, String> entityIndex, Class<T> componentClass, String entityClassName, Predicate<T> filter) {
+        if (entityClassName == null)
+            return null;
+        String beanName = entityIndex.get(entityClassName);
+        if (beanName != null) {
+            if (applicationContext.containsBean(beanName))
+                return applicationContext.getBean(beanName, componentClass);
+            entityIndex.remove(entityClassName, beanName);
+        }
+        Map<String, T> services = applicationContext.getBeansOfType(componentClass);
+        Optional<Map.Entry<String, T>> optService = services.entrySet().stream().filter(entry -> filter.test(entry.getValue())).findAny();
         if (optService.isPresent()) {
-            return (T) optService.get();
+            entityIndex.put(entityClassName, optService.get().getKey());
+            return optService.get().getValue();
         }
         return null;
     }
 
+    @SuppressWarnings("rawtypes")
+    private void indexEntityComponent(Object component, String beanName) {
+        try {
+            if (component instanceof BaseEntitySystemApi entitySystemApi && entitySystemApi.getEntityType() != null)
+                entitySystemApiBeans.put(entitySystemApi.getEntityType().getName(), beanName);
+            else if (component instanceof BaseRepository repository && repository.getEntityType() != null)
+                entityRepositoryBeans.put(repository.getEntityType().getName(), beanName);
+        } catch (RuntimeException e) {
+            //component not ready yet, it is registered anyway and found by scanning
+            log.warn("Impossible to read entity type of {}: {}", component.getClass().getName(), e.getMessage());
+        }
+    }
+
     public ApplicationContext getApplicationContext() {
         return this.applicationContext;
     }
 
+    public void setApplicationContext(ApplicationContext applicationContext) {
+        this.applicationContext = applicationContext;
+        //lookups started before the context was available
+        pendingLookups.forEach(this::tryCompleteLookup);
+    }
+
     private <T> void removeBean(String name, T bean) {
         BeanDefinitionRegistry beanDefinitionRegistry = ((BeanDefinitionRegistry) configurableBeanFactory);
+        Properties properties = eventSubscriptions.isEmpty() ? null : getBeanProperties(name);
         configurableBeanFactory.destroyBean(name, bean);
         beanDefinitionRegistry.removeBeanDefinition(name);
+        entitySystemApiBeans.values().removeIf(name::equals);
+        entityRepositoryBeans.values().removeIf(name::equals);
+        if (properties != null)
+            publishComponentEvent(SpringComponentEvent.Type.REMOVED, name, bean, properties);
     }
 
     private <T> Map<String, T> filterComponents(Map<String, T> registeredComponents, ComponentFilter filter) {
@@ -163,17 +291,24 @@ public class SpringComponentRegistry extends AbstractComponentRegistry {
         //filter == null means no filter
         if (filter == null)
             return registeredComponents;
-        BeanDefinitionRegistry beanDefinitionRegistry = ((BeanDefinitionRegistry) configurableBeanFactory);
         registeredComponents.keySet().forEach(key -> {
-            Properties props = new Properties();
-            PropertyValues propertyValues = beanDefinitionRegistry.getBeanDefinition(key).getPropertyValues();
-            propertyValues.forEach(propertyValue -> props.put(propertyValue.getName(), propertyValue.getValue()));
-            if (filter.matches(props))
+            if (filter.matches(getBeanProperties(key)))
                 foundComponents.put(key, registeredComponents.get(key));
         });
         return foundComponents;
     }
 
+    private Properties getBeanProperties(String beanName) {
+        BeanDefinitionRegistry beanDefinitionRegistry = ((BeanDefinitionRegistry) configurableBeanFactory);
+        Properties props = new Properties();
+        //singletons registered without definition have no properties
+        if (beanDefinitionRegistry.containsBeanDefinition(beanName)) {
+            PropertyValues propertyValues = beanDefinitionRegistry.getBeanDefinition(beanName).getPropertyValues();
+            propertyValues.forEach(propertyValue -> props.put(propertyValue.getName(), propertyValue.getValue()));
+        }
+        return props;
+    }
+
     private static String createBeanName(Class<?> componentClass, Class<?> concreteComponentClass, ComponentConfiguration configuration) {
         StringBuilder sb = new StringBuilder();
         //avoding registering bean of same class cause registration exeception because of the same name
@@ -188,4 +323,15 @@ public class SpringComponentRegistry extends AbstractComponentRegistry {
         return new String(c);
     }
 
+    private static class PendingLookup<T> {
+        private final Class<T> componentClass;
+        private final ComponentFilter filter;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+
+        private PendingLookup(Class<T> componentClass, ComponentFilter filter) {
+            this.componentClass = componentClass;
+            this.filter = filter;
+        }
+    }
+
 }
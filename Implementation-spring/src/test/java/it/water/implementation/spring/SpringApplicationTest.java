@@ -23,10 +23,15 @@ import it.water.core.api.registry.filter.ComponentFilter;
 import it.water.core.model.exceptions.ValidationException;
 import it.water.core.registry.model.ComponentConfigurationFactory;
 import it.water.core.security.model.principal.UserPrincipal;
+import it.water.implementation.core.bundle.PropertyHandle;
+import it.water.implementation.core.bundle.PropertyParsers;
 import it.water.implementation.spring.annotations.EnableWaterFramework;
 import it.water.implementation.spring.bundle.api.ServiceInterface;
 import it.water.implementation.spring.bundle.service.*;
+import it.water.implementation.spring.bundle.SpringApplicationProperties;
 import it.water.implementation.spring.interceptors.SpringServiceInterceptor;
+import it.water.implementation.spring.registry.SpringComponentEvent;
+import it.water.implementation.spring.registry.SpringComponentRegistry;
 import it.water.implementation.spring.security.SpringSecurityContext;
 import it.water.implementation.spring.util.filter.SpringComponentFilterBuilder;
 import org.junit.jupiter.api.Assertions;
@@ -36,16 +41,31 @@ import org.junit.jupiter.api.TestMethodOrder;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.core.env.ConfigurableEnvironment;
+import org.springframework.core.env.MapPropertySource;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
 
 import java.io.File;
 import java.security.Principal;
+import java.time.Duration;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Hashtable;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
@@ -74,6 +94,10 @@ class SpringApplicationTest {
     ApplicationProperties waterApplicationProperties;
     @Autowired
     SpringSystemServiceApi springSystemServiceApi;
+    @Autowired
+    SpringApplicationProperties springApplicationProperties;
+    @Autowired
+    ConfigurableEnvironment environment;
 
     @Test
     void initSpringApplication() {
@@ -166,6 +190,63 @@ class SpringApplicationTest {
         Assertions.assertThrows(UnsupportedOperationException.class, () -> this.waterApplicationProperties.unloadProperties(customProps2));
     }
 
+    @Test
+    void testTypedProperties() {
+        Map<String, Object> values = new HashMap<>();
+        values.put("it.water.test.int", "42");
+        values.put("it.water.test.long", "4200000000");
+        values.put("it.water.test.boolean", "true");
+        values.put("it.water.test.duration", "PT30S");
+        values.put("it.water.test.list", "a, b,,c");
+        values.put("it.water.test.invalid", "not-a-value");
+        environment.getPropertySources().addFirst(new MapPropertySource("typedProperties", values));
+        //resolved values are read again from the environment on refresh
+        springApplicationProperties.refreshProperties();
+        try {
+            Assertions.assertEquals(42, springApplicationProperties.getInt("it.water.test.int", 0));
+            Assertions.assertEquals(7, springApplicationProperties.getInt("it.water.test.missing", 7));
+            Assertions.assertEquals(4200000000L, springApplicationProperties.getLong("it.water.test.long", 0));
+            Assertions.assertTrue(springApplicationProperties.getBoolean("it.water.test.boolean", false));
+            Assertions.assertTrue(springApplicationProperties.getBoolean("it.water.test.missing", true));
+            Assertions.assertEquals(Duration.ofSeconds(30), springApplicationProperties.getDuration("it.water.test.duration", Duration.ZERO));
+            Assertions.assertEquals(List.of("a", "b", "c"), springApplicationProperties.getList("it.water.test.list"));
+            Assertions.assertTrue(springApplicationProperties.getList("it.water.test.missing").isEmpty());
+            //invalid values are reported, not replaced by the default value
+            Assertions.assertThrows(NumberFormatException.class, () -> springApplicationProperties.getInt("it.water.test.invalid", 0));
+            Assertions.assertThrows(NumberFormatException.class, () -> springApplicationProperties.getLong("it.water.test.invalid", 0));
+            Assertions.assertThrows(DateTimeParseException.class, () -> springApplicationProperties.getDuration("it.water.test.invalid", Duration.ZERO));
+            Assertions.assertFalse(springApplicationProperties.getBoolean("it.water.test.invalid", true));
+            Assertions.assertEquals(List.of("not-a-value"), springApplicationProperties.getList("it.water.test.invalid"));
+        } finally {
+            environment.getPropertySources().remove("typedProperties");
+            springApplicationProperties.refreshProperties();
+        }
+    }
+
+    @Test
+    void testPropertyHandle() {
+        PropertyHandle<Integer> handle = springApplicationProperties.getPropertyHandle("it.water.test.handle", PropertyParsers.INTEGER, 1);
+        Assertions.assertEquals("it.water.test.handle", handle.getKey());
+        Assertions.assertEquals(1, (int) handle.get());
+        Map<String, Object> values = new HashMap<>();
+        values.put("it.water.test.handle", "2");
+        environment.getPropertySources().addFirst(new MapPropertySource("handleProperties", values));
+        try {
+            //environment changes are seen on refresh
+            Assertions.assertEquals(1, (int) handle.get());
+            springApplicationProperties.refreshProperties();
+            Assertions.assertEquals(2, (int) handle.get());
+            //invalid values keep the previous one
+            values.put("it.water.test.handle", "not-a-number");
+            springApplicationProperties.refreshProperties();
+            Assertions.assertEquals(2, (int) handle.get());
+        } finally {
+            environment.getPropertySources().remove("handleProperties");
+        }
+        springApplicationProperties.refreshProperties();
+        Assertions.assertEquals(1, (int) handle.get());
+    }
+
     @Test
     void testSpringSecurityContext() {
         Set<Principal> principals = new HashSet<>();
@@ -176,4 +257,91 @@ class SpringApplicationTest {
         SpringSecurityContext springSecurityContext1 = new SpringSecurityContext(principals, "customImplementation");
         Assertions.assertNotNull(springSecurityContext1);
     }
+
+    /**
+     * Async lookup completes at once for registered beans, on registration for missing ones
+     * and with a timeout if the bean never shows up.
+     */
+    @Test
+    void testFindComponentAsync() throws Exception {
+        SpringComponentRegistry springComponentRegistry = (SpringComponentRegistry) waterComponentRegistry;
+        SpringComponentFilterBuilder componentFilterBuilder = new SpringComponentFilterBuilder();
+        CompletableFuture<ServiceInterface> registeredLookup = springComponentRegistry.findComponentAsync(ServiceInterface.class, null, Duration.ofSeconds(5));
+        Assertions.assertTrue(registeredLookup.isDone());
+        Assertions.assertNotNull(registeredLookup.get());
+
+        CompletableFuture<ServiceInterface> pendingLookup = springComponentRegistry.findComponentAsync(ServiceInterface.class, componentFilterBuilder.createFilter("filter", "async"), Duration.ofSeconds(5));
+        Assertions.assertFalse(pendingLookup.isDone());
+        Hashtable<String, Object> properties = new Hashtable<>();
+        properties.put("filter", "async");
+        ComponentRegistration<ServiceInterface, String> registration = waterComponentRegistry.registerComponent(ServiceInterface.class, new ServiceInterfaceImpl3(), ComponentConfigurationFactory.createNewComponentPropertyFactory().fromGenericDictionary(properties).withPriority(5).build());
+        try {
+            Assertions.assertInstanceOf(ServiceInterfaceImpl3.class, pendingLookup.get(5, TimeUnit.SECONDS));
+        } finally {
+            waterComponentRegistry.unregisterComponent(registration);
+        }
+
+        CompletableFuture<ServiceInterface> missingLookup = springComponentRegistry.findComponentAsync(ServiceInterface.class, componentFilterBuilder.createFilter("filter", "missing"), Duration.ofMillis(100));
+        ExecutionException e = Assertions.assertThrows(ExecutionException.class, () -> missingLookup.get(5, TimeUnit.SECONDS));
+        Assertions.assertInstanceOf(TimeoutException.class, e.getCause());
+    }
+
+    /**
+     * Events of distinct beans are delivered in registration order.
+     */
+    @Test
+    void testComponentEventsOrdering() throws Exception {
+        SpringComponentRegistry springComponentRegistry = (SpringComponentRegistry) waterComponentRegistry;
+        SpringComponentFilterBuilder componentFilterBuilder = new SpringComponentFilterBuilder();
+        BlockingQueue<SpringComponentEvent<ServiceInterface>> events = new LinkedBlockingQueue<>();
+        AtomicReference<Flow.Subscription> subscription = new AtomicReference<>();
+        springComponentRegistry.getComponentEventPublisher(ServiceInterface.class, componentFilterBuilder.createFilter("filter", "events")).subscribe(new Flow.Subscriber<>() {
+            @Override
+            public void onSubscribe(Flow.Subscription s) {
+                subscription.set(s);
+                s.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(SpringComponentEvent<ServiceInterface> item) {
+                events.add(item);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                Assertions.fail(throwable.getMessage());
+            }
+
+            @Override
+            public void onComplete() {
+                //never completes
+            }
+        });
+        Hashtable<String, Object> properties = new Hashtable<>();
+        properties.put("filter", "events");
+        ComponentRegistration<ServiceInterface, String> firstRegistration = waterComponentRegistry.registerComponent(ServiceInterface.class, new ServiceInterfaceImpl3(), ComponentConfigurationFactory.createNewComponentPropertyFactory().fromGenericDictionary(properties).withPriority(6).build());
+        ComponentRegistration<ServiceInterface, String> secondRegistration = waterComponentRegistry.registerComponent(ServiceInterface.class, new ServiceInterfaceImpl3(), ComponentConfigurationFactory.createNewComponentPropertyFactory().fromGenericDictionary(properties).withPriority(7).build());
+        try {
+            SpringComponentEvent<ServiceInterface> firstAdded = events.poll(5, TimeUnit.SECONDS);
+            SpringComponentEvent<ServiceInterface> secondAdded = events.poll(5, TimeUnit.SECONDS);
+            Assertions.assertNotNull(firstAdded);
+            Assertions.assertNotNull(secondAdded);
+            Assertions.assertEquals(SpringComponentEvent.Type.ADDED, firstAdded.getType());
+            Assertions.assertEquals(SpringComponentEvent.Type.ADDED, secondAdded.getType());
+            Assertions.assertEquals(firstRegistration.getRegistration(), firstAdded.getBeanName());
+            Assertions.assertEquals(secondRegistration.getRegistration(), secondAdded.getBeanName());
+            waterComponentRegistry.unregisterComponent(firstRegistration);
+            waterComponentRegistry.unregisterComponent(secondRegistration);
+            SpringComponentEvent<ServiceInterface> firstRemoved = events.poll(5, TimeUnit.SECONDS);
+            SpringComponentEvent<ServiceInterface> secondRemoved = events.poll(5, TimeUnit.SECONDS);
+            Assertions.assertNotNull(firstRemoved);
+            Assertions.assertNotNull(secondRemoved);
+            Assertions.assertEquals(SpringComponentEvent.Type.REMOVED, firstRemoved.getType());
+            Assertions.assertEquals(SpringComponentEvent.Type.REMOVED, secondRemoved.getType());
+            Assertions.assertEquals(firstAdded.getBeanName(), firstRemoved.getBeanName());
+            Assertions.assertEquals(secondAdded.getBeanName(), secondRemoved.getBeanName());
+        } finally {
+            subscription.get().cancel();
+        }
+    }
 }